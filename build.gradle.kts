@@ -1,5 +1,6 @@
 plugins {
     id("java")
+    id("me.champeau.jmh") version "0.6.6"
 }
 
 group = "ru.yadev"
@@ -21,4 +22,14 @@ dependencies {
 
 tasks.getByName<Test>("test") {
     useJUnitPlatform()
-}
\ No newline at end of file
+}
+
+jmh {
+    jmhVersion.set("1.35")
+    // Benchmarks touch AWT (skin decoding), so forks must run without a display
+    jvmArgsAppend.set(listOf("-Djava.awt.headless=true"))
+    resultFormat.set("JSON")
+    resultsFile.set(layout.buildDirectory.file("reports/jmh/results-${project.version}.json"))
+    // e.g. ./gradlew jmh -PjmhIncludes=MessageDispatch
+    (project.findProperty("jmhIncludes") as String?)?.let { includes.set(listOf(it)) }
+}
@@ -0,0 +1,82 @@
+package PluginGUI;
+
+import org.openjdk.jmh.annotations.*;
+
+import javax.swing.*;
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Layout and paint time of one balloon phrase: a JLabel with the phrase as HTML, as the
+ * balloon used to show it, versus BalloonText laid out anew and BalloonText taken from the
+ * cache of BalloonWidget.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BalloonTextBenchmark {
+
+	private static final int WIDTH = 380;
+
+	@Param({"html-label", "text-layout", "text-layout-cached"})
+	public String renderer;
+
+	@Param({"short", "long"})
+	public String phrase;
+
+	private String text;
+	private Font font;
+	private BalloonText cached;
+	private BufferedImage target;
+	private Graphics2D g;
+
+	@Setup
+	public void setup() {
+		if (phrase.equals("short")) {
+			text = "Привет! Как <b>дела</b>?";
+		} else {
+			StringBuilder builder = new StringBuilder();
+			for (int i = 0; i < 12; ++i) {
+				builder.append("Сегодня <i>отличная</i> погода, самое время &laquo;погулять&raquo; и <u>отдохнуть</u>. ");
+				if (i % 4 == 3) {
+					builder.append("<br>");
+				}
+			}
+			text = builder.toString();
+		}
+		font = new Font("Times New Roman", Font.BOLD, 18);
+		cached = BalloonText.layout(text, font, WIDTH);
+		target = new BufferedImage(WIDTH, 600, BufferedImage.TYPE_INT_ARGB_PRE);
+		g = target.createGraphics();
+		g.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+		g.setColor(Color.BLACK);
+	}
+
+	@TearDown
+	public void tearDown() {
+		g.dispose();
+	}
+
+	@Benchmark
+	public BufferedImage layoutAndPaint() {
+		g.setComposite(AlphaComposite.Clear);
+		g.fillRect(0, 0, target.getWidth(), target.getHeight());
+		g.setComposite(AlphaComposite.SrcOver);
+		if (renderer.equals("html-label")) {
+			JLabel label = new JLabel("<html><center>" + text + "</center></html>");
+			label.setHorizontalAlignment(JLabel.CENTER);
+			label.setFont(font);
+			label.setSize(WIDTH, target.getHeight());
+			label.paint(g);
+		} else {
+			BalloonText layout = renderer.equals("text-layout") ? BalloonText.layout(text, font, WIDTH) : cached;
+			layout.paint(g, 0, 0, WIDTH);
+		}
+		return target;
+	}
+
+}
@@ -0,0 +1,70 @@
+package PluginGUI;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.io.IOException;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Draw time of one character frame into a translucent buffer: the image as returned by ImageIO
+ * drawn with AlphaComposite.SRC and scaled on every repaint, versus the compatible image with
+ * a cached scaled variant, as painted by CharacterWidget.
+ * Expects to be run from the project directory, or with -Dbenchmark.assetDir=...
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class CharacterDrawBenchmark {
+
+	@Param({"imageio", "compatible"})
+	public String pipeline;
+
+	@Param({"1.0", "1.5"})
+	public double scale;
+
+	private BufferedImage rawImage;
+	private SkinImage skinImage;
+	private BufferedImage target;
+	private Graphics2D g;
+	private int width;
+	private int height;
+
+	@Setup
+	public void setup() throws IOException {
+		Path assetDir = Paths.get(System.getProperty("benchmark.assetDir", "asset"));
+		Path imagePath = assetDir.resolve("skins").resolve("illia").resolve("sorrow.png");
+		rawImage = Skin.readImage(imagePath);
+		skinImage = SkinImage.read(imagePath);
+		width = (int) Math.round(rawImage.getWidth() * scale);
+		height = (int) Math.round(rawImage.getHeight() * scale);
+		target = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		g = target.createGraphics();
+	}
+
+	@TearDown
+	public void tearDown() {
+		g.dispose();
+	}
+
+	@Benchmark
+	public BufferedImage drawFrame() {
+		if (pipeline.equals("imageio")) {
+			g.setComposite(AlphaComposite.Src);
+			g.drawImage(rawImage, 0, 0, width, height, null);
+		} else {
+			g.setComposite(AlphaComposite.Clear);
+			g.fillRect(0, 0, width, height);
+			g.setComposite(AlphaComposite.SrcOver);
+			g.drawImage(skinImage.getFrame(0, scale, false), 0, 0, width, height, null);
+		}
+		return target;
+	}
+
+}
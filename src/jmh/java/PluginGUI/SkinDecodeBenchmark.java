@@ -0,0 +1,55 @@
+package PluginGUI;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.awt.*;
+import java.nio.file.Path;
+import java.nio.file.Paths;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Decoding of skin images as done on every "gui:set-image" message before SkinImageCache,
+ * versus getting the image from the cache.
+ * Expects to be run from the project directory, or with -Dbenchmark.assetDir=...
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class SkinDecodeBenchmark {
+
+	@Param({"variant1", "illia"})
+	public String skinName;
+
+	@Param({"sorrow", "greeting"})
+	public String imageName;
+
+	private Skin skin;
+	private SkinImageCache cache;
+
+	@Setup
+	public void setup() {
+		Path assetDir = Paths.get(System.getProperty("benchmark.assetDir", "asset"));
+		skin = new Skin(assetDir.resolve("skins").resolve(skinName), true);
+		cache = new SkinImageCache(SkinImageCache.defaultMaxBytes());
+	}
+
+	@TearDown
+	public void tearDown() {
+		cache.shutdown();
+	}
+
+	@Benchmark
+	public Image getImage() {
+		return skin.getImage(imageName);
+	}
+
+	@Benchmark
+	public Image getCachedImage() throws InterruptedException, ExecutionException {
+		return cache.load(skin, imageName).get().getFrame(0);
+	}
+
+}
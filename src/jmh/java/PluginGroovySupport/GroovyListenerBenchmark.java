@@ -0,0 +1,75 @@
+package PluginGroovySupport;
+
+import PluginSystem.BenchmarkPlugins;
+import PluginSystem.PluginManager;
+import PluginSystem.PluginProxy;
+import groovy.lang.GroovyShell;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Invocation of a listener declared as a closure in a Groovy plugin script, compiled
+ * dynamically and with compileStatic, compared with an equivalent Java listener.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class GroovyListenerBenchmark {
+
+	private static final String SCRIPT =
+			"def counter = 0\n" +
+			"addMessageListener(LISTENER_TAG, { sender, tag, data ->\n" +
+			"    if (data instanceof Map) counter += data.size()\n" +
+			"})\n";
+
+	private PluginProxy proxy;
+	private final Map<String, Object> data = new HashMap<>();
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		loadScript("benchmark_groovy", "benchmark:groovy", false);
+		loadScript("benchmark_groovy_static", "benchmark:groovy-static", true);
+		proxy = BenchmarkPlugins.load("benchmark", p -> p.addMessageListener("benchmark:java", (sender, tag, d) -> {
+			if (d instanceof Map) blackhole.consume(((Map) d).size());
+		}));
+		data.put("text", "Hello world!");
+	}
+
+	private static void loadScript(String id, String tag, boolean compileStatic) {
+		CompilerConfiguration compilerConfiguration = PluginClass.createCompilerConfiguration(compileStatic);
+		String script = SCRIPT.replace("LISTENER_TAG", "'" + tag + "'");
+		GroovyPlugin groovyPlugin = (GroovyPlugin) new GroovyShell(compilerConfiguration).parse(script, id + ".groovy");
+		PluginManager.getInstance().initializePlugin(id, groovyPlugin);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkPlugins.unload(proxy);
+		PluginManager.getInstance().unloadPlugin("benchmark_groovy");
+		PluginManager.getInstance().unloadPlugin("benchmark_groovy_static");
+	}
+
+	@Benchmark
+	public void groovyListener() {
+		proxy.sendMessage("benchmark:groovy", data);
+	}
+
+	@Benchmark
+	public void groovyStaticListener() {
+		proxy.sendMessage("benchmark:groovy-static", data);
+	}
+
+	@Benchmark
+	public void javaListener() {
+		proxy.sendMessage("benchmark:java", data);
+	}
+
+}
@@ -0,0 +1,186 @@
+package PluginGroovySupport;
+
+import PluginSystem.ParallelPluginLoader;
+import PluginSystem.PluginManager;
+import org.openjdk.jmh.annotations.*;
+
+import javax.tools.JavaCompiler;
+import javax.tools.ToolProvider;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.jar.Attributes;
+import java.util.jar.JarEntry;
+import java.util.jar.JarOutputStream;
+import java.util.jar.Manifest;
+import java.util.stream.Stream;
+
+/**
+ * Wall-clock time of loading and unloading 50 plugins packed as jars versus the same
+ * plugins written in Groovy, with an empty ("cold") or filled ("warm") script cache.
+ * Every plugin registers 20 listeners that reverse the words of a phrase.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class JarLoadBenchmark {
+
+	private static final int PLUGIN_COUNT = 50;
+
+	@Param({"jar", "groovy-cold", "groovy-warm"})
+	public String format;
+
+	private Path fixtureDir;
+	private Path cacheDir;
+	private final List<Path> paths = new ArrayList<>();
+
+	@Setup(Level.Trial)
+	public void createFixture() throws IOException {
+		fixtureDir = Files.createTempDirectory("minachan-plugins");
+		// Кэш скриптов хранится в data/ рабочего каталога
+		System.setProperty("user.dir", fixtureDir.toString());
+		PluginManager.getInstance().initialize();
+		PluginManager.getInstance().loadPluginByPackageName("PluginGroovySupport");
+		cacheDir = PluginManager.getPluginDataDirPath("PluginGroovySupport").resolve("groovy-cache");
+		if (format.equals("jar")) {
+			createJars();
+		} else {
+			for (int i = 0; i < PLUGIN_COUNT; ++i) {
+				Path pluginDir = fixtureDir.resolve(pluginId(i));
+				Files.createDirectories(pluginDir);
+				Files.write(pluginDir.resolve("plugin.groovy"), script(i).getBytes(StandardCharsets.UTF_8));
+				paths.add(pluginDir);
+			}
+		}
+	}
+
+	private void createJars() throws IOException {
+		Path sourceDir = fixtureDir.resolve("src");
+		Path classesDir = fixtureDir.resolve("classes");
+		Files.createDirectories(classesDir);
+		List<String> arguments = new ArrayList<>(List.of("-d", classesDir.toString(),
+				"-cp", System.getProperty("java.class.path")));
+		for (int i = 0; i < PLUGIN_COUNT; ++i) {
+			Path source = sourceDir.resolve(pluginId(i)).resolve(className(i) + ".java");
+			Files.createDirectories(source.getParent());
+			Files.write(source, javaSource(i).getBytes(StandardCharsets.UTF_8));
+			arguments.add(source.toString());
+		}
+		JavaCompiler compiler = ToolProvider.getSystemJavaCompiler();
+		if (compiler == null || compiler.run(null, null, null, arguments.toArray(new String[0])) != 0) {
+			throw new IllegalStateException("Could not compile benchmark plugins");
+		}
+		for (int i = 0; i < PLUGIN_COUNT; ++i) {
+			Manifest manifest = new Manifest();
+			manifest.getMainAttributes().put(Attributes.Name.MANIFEST_VERSION, "1.0");
+			manifest.getMainAttributes().putValue("Plugin-Class", pluginId(i) + "." + className(i));
+			Path jar = fixtureDir.resolve(pluginId(i) + ".jar");
+			Path packageDir = classesDir.resolve(pluginId(i));
+			try (JarOutputStream out = new JarOutputStream(Files.newOutputStream(jar), manifest);
+			     Stream<Path> files = Files.list(packageDir)) {
+				for (Path file : (Iterable<Path>) files::iterator) {
+					out.putNextEntry(new JarEntry(pluginId(i) + "/" + file.getFileName()));
+					Files.copy(file, (OutputStream) out);
+					out.closeEntry();
+				}
+			}
+			paths.add(jar);
+		}
+	}
+
+	private static String pluginId(int i) {
+		return String.format("benchmark_plugin_%03d", i);
+	}
+
+	private static String className(int i) {
+		return String.format("BenchmarkPlugin%03d", i);
+	}
+
+	private static String javaSource(int i) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("package ").append(pluginId(i)).append(";\n")
+				.append("import PluginSystem.*;\n")
+				.append("import java.util.*;\n")
+				.append("public class ").append(className(i)).append(" implements Plugin {\n")
+				.append("    private final List<Object> phrases = new ArrayList<>();\n")
+				.append("    private static Object handler(Object data) {\n")
+				.append("        String text = (data instanceof Map) ? String.valueOf(((Map) data).get(\"text\")) : String.valueOf(data);\n")
+				.append("        StringJoiner joiner = new StringJoiner(\" \");\n")
+				.append("        for (String word : text.split(\" \")) {\n")
+				.append("            joiner.add(new StringBuilder(word).reverse());\n")
+				.append("        }\n")
+				.append("        return joiner.toString();\n")
+				.append("    }\n")
+				.append("    public boolean initialize(PluginProxy proxy) {\n");
+		for (int j = 0; j < 20; ++j) {
+			builder.append("        proxy.addMessageListener(\"benchmark-").append(i).append(":tag").append(j)
+					.append("\", (sender, tag, data) -> phrases.add(handler(data)));\n");
+		}
+		builder.append("        return true;\n")
+				.append("    }\n")
+				.append("}\n");
+		return builder.toString();
+	}
+
+	private static String script(int i) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("def phrases = []\n");
+		for (int j = 0; j < 20; ++j) {
+			builder.append("def handler").append(j).append("(sender, data) {\n")
+					.append("    def text = data instanceof Map ? data.get('text') : data?.toString()\n")
+					.append("    return text?.split(' ')?.collect { it.reverse() }?.join(' ')\n")
+					.append("}\n")
+					.append("addMessageListener('benchmark-").append(i).append(":tag").append(j)
+					.append("', { sender, tag, data -> phrases << handler").append(j).append("(sender, data) })\n");
+		}
+		return builder.toString();
+	}
+
+	@Setup(Level.Invocation)
+	public void prepareCache() throws IOException {
+		if (format.equals("groovy-cold")) {
+			delete(cacheDir);
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFixture() throws IOException {
+		delete(fixtureDir);
+	}
+
+	private static void delete(Path dir) throws IOException {
+		if (!Files.exists(dir)) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public int loadAndUnloadAll() {
+		List<ParallelPluginLoader.Result> results = new ParallelPluginLoader(PluginManager.getInstance(),
+				ParallelPluginLoader.defaultParallelism()).load(paths);
+		int loaded = 0;
+		for (ParallelPluginLoader.Result result : results) {
+			if (result.isLoaded()) {
+				loaded++;
+			}
+			PluginManager.getInstance().unloadPlugin(result.getId());
+		}
+		if (loaded != PLUGIN_COUNT) {
+			throw new IllegalStateException("Loaded " + loaded + " of " + PLUGIN_COUNT + " plugins");
+		}
+		return loaded;
+	}
+
+}
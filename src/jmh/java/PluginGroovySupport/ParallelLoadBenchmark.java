@@ -0,0 +1,124 @@
+package PluginGroovySupport;
+
+import PluginSystem.ParallelPluginLoader;
+import PluginSystem.PluginManager;
+import org.openjdk.jmh.annotations.*;
+
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+import java.util.stream.Stream;
+
+/**
+ * Wall-clock time of loading a synthetic set of 100 Groovy plugins depending on the number
+ * of compiler threads, with an empty ("cold") or filled ("warm") script cache.
+ * Every tenth plugin is a dependency of the next ten plugins.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.SingleShotTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 3)
+@Measurement(iterations = 10)
+@Fork(1)
+public class ParallelLoadBenchmark {
+
+	private static final int PLUGIN_COUNT = 100;
+
+	@Param({"1", "2", "4", "8"})
+	public int threads;
+
+	@Param({"cold", "warm"})
+	public String cache;
+
+	private Path fixtureDir;
+	private Path cacheDir;
+	private final List<Path> paths = new ArrayList<>();
+	private List<ParallelPluginLoader.Result> results;
+
+	@Setup(Level.Trial)
+	public void createFixture() throws IOException {
+		fixtureDir = Files.createTempDirectory("minachan-plugins");
+		// Кэш скриптов хранится в data/ рабочего каталога
+		System.setProperty("user.dir", fixtureDir.toString());
+		PluginManager.getInstance().initialize();
+		PluginManager.getInstance().loadPluginByPackageName("PluginGroovySupport");
+		cacheDir = PluginManager.getPluginDataDirPath("PluginGroovySupport").resolve("groovy-cache");
+		for (int i = 0; i < PLUGIN_COUNT; ++i) {
+			Path pluginDir = fixtureDir.resolve(pluginId(i));
+			Files.createDirectories(pluginDir);
+			Files.write(pluginDir.resolve("plugin.groovy"), script(i).getBytes(StandardCharsets.UTF_8));
+			if (i >= 10) {
+				String manifest = "dependencies=" + pluginId(i / 10 * 10 - 10) + "\n";
+				Files.write(pluginDir.resolve("plugin.properties"), manifest.getBytes(StandardCharsets.UTF_8));
+			}
+			paths.add(pluginDir);
+		}
+	}
+
+	private static String pluginId(int i) {
+		return String.format("benchmark_plugin_%03d", i);
+	}
+
+	private static String script(int i) {
+		StringBuilder builder = new StringBuilder();
+		builder.append("def phrases = []\n");
+		for (int j = 0; j < 20; ++j) {
+			builder.append("def handler").append(j).append("(sender, data) {\n")
+					.append("    def text = data instanceof Map ? data.get('text') : data?.toString()\n")
+					.append("    return text?.split(' ')?.collect { it.reverse() }?.join(' ')\n")
+					.append("}\n")
+					.append("addMessageListener('benchmark-").append(i).append(":tag").append(j)
+					.append("', { sender, tag, data -> phrases << handler").append(j).append("(sender, data) })\n");
+		}
+		return builder.toString();
+	}
+
+	@Setup(Level.Invocation)
+	public void prepareCache() throws IOException {
+		if (cache.equals("cold")) {
+			delete(cacheDir);
+		}
+	}
+
+	@TearDown(Level.Invocation)
+	public void unload() {
+		for (ParallelPluginLoader.Result result : results) {
+			PluginManager.getInstance().unloadPlugin(result.getId());
+		}
+	}
+
+	@TearDown(Level.Trial)
+	public void deleteFixture() throws IOException {
+		delete(fixtureDir);
+	}
+
+	private static void delete(Path dir) throws IOException {
+		if (!Files.exists(dir)) {
+			return;
+		}
+		try (Stream<Path> files = Files.walk(dir)) {
+			files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+		}
+	}
+
+	@Benchmark
+	public int loadAll() {
+		results = new ParallelPluginLoader(PluginManager.getInstance(), threads).load(paths);
+		int loaded = 0;
+		for (ParallelPluginLoader.Result result : results) {
+			if (result.isLoaded()) {
+				loaded++;
+			}
+		}
+		if (loaded != PLUGIN_COUNT) {
+			throw new IllegalStateException("Loaded " + loaded + " of " + PLUGIN_COUNT + " plugins");
+		}
+		return loaded;
+	}
+
+}
@@ -0,0 +1,64 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Routing of a message through {@link CorePlugin} alternatives compared with sending
+ * straight to the destination tag.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class AlternativeRoutingBenchmark {
+
+	private PluginProxy proxy;
+	private final Map<String, Object> data = new HashMap<>();
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		BenchmarkPlugins.loadCore();
+		proxy = BenchmarkPlugins.load("benchmark", p -> {
+			p.addMessageListener("benchmark:say", (sender, tag, d) -> blackhole.consume(d));
+			registerAlternative(p, "benchmark-alias:say", "benchmark:say");
+			registerAlternative(p, "benchmark-chain:say", "benchmark-alias:say");
+		});
+		data.put("text", "Hello world!");
+	}
+
+	private static void registerAlternative(PluginProxy proxy, String srcTag, String dstTag) {
+		Map<String, Object> m = new HashMap<>();
+		m.put("srcTag", srcTag);
+		m.put("dstTag", dstTag);
+		m.put("priority", 100);
+		proxy.sendMessage("core:register-alternative", m);
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkPlugins.unload(proxy);
+	}
+
+	@Benchmark
+	public void direct() {
+		proxy.sendMessage("benchmark:say", data);
+	}
+
+	@Benchmark
+	public void oneAlternative() {
+		proxy.sendMessage("benchmark-alias:say", data);
+	}
+
+	@Benchmark
+	public void twoAlternatives() {
+		proxy.sendMessage("benchmark-chain:say", data);
+	}
+
+}
@@ -0,0 +1,65 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of publishing a burst of messages one by one versus as a single batch.
+ * Both benchmarks deliver the same burst to one batch-aware and two legacy listeners.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class BatchPublishBenchmark {
+
+	private static final String TAG = "benchmark:batch";
+
+	@Param({"1", "4", "16", "64", "256", "1024"})
+	public int batchSize;
+
+	private final PluginManager pluginManager = PluginManager.getInstance();
+	private final List<MessageListener> listeners = new ArrayList<>();
+	private List<Object> batch;
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		batch = new ArrayList<>(batchSize);
+		for (int i = 0; i < batchSize; ++i) {
+			batch.add("phrase " + i);
+		}
+		listeners.add((BatchMessageListener) (sender, tag, items) -> blackhole.consume(items.size()));
+		listeners.add((sender, tag, data) -> blackhole.consume(data));
+		listeners.add((sender, tag, data) -> blackhole.consume(data));
+		for (MessageListener listener : listeners) {
+			pluginManager.registerMessageListener(TAG, listener);
+		}
+	}
+
+	@TearDown
+	public void tearDown() {
+		for (MessageListener listener : listeners) {
+			pluginManager.unregisterMessageListener(TAG, listener);
+		}
+		listeners.clear();
+	}
+
+	@Benchmark
+	public void sendOneByOne() {
+		for (Object data : batch) {
+			pluginManager.sendMessage("benchmark", TAG, data);
+		}
+	}
+
+	@Benchmark
+	public void sendBatch() {
+		pluginManager.sendBatch("benchmark", TAG, batch);
+	}
+
+}
@@ -0,0 +1,45 @@
+package PluginSystem;
+
+import java.util.function.Consumer;
+
+/**
+ * Helpers for benchmarks that need real plugins registered in {@link PluginManager}.
+ */
+public final class BenchmarkPlugins {
+
+	private BenchmarkPlugins() {
+	}
+
+	/**
+	 * Makes sure the core plugin is loaded without touching the user directories.
+	 */
+	public static void loadCore() {
+		PluginManager.getInstance().initializePlugin("core", new CorePlugin());
+	}
+
+	/**
+	 * Registers a plugin with the given id and returns its proxy.
+	 */
+	public static PluginProxy load(String id, Consumer<PluginProxy> initializer) {
+		PluginProxy[] result = new PluginProxy[1];
+		boolean loaded = PluginManager.getInstance().initializePlugin(id, new Plugin() {
+			@Override
+			public boolean initialize(PluginProxy proxy) {
+				result[0] = proxy;
+				initializer.accept(proxy);
+				return true;
+			}
+		});
+		if (!loaded) {
+			throw new IllegalStateException("Benchmark plugin " + id + " is already loaded");
+		}
+		return result[0];
+	}
+
+	public static void unload(PluginProxy proxy) {
+		if (proxy != null && proxy.getId() != null) {
+			proxy.unload();
+		}
+	}
+
+}
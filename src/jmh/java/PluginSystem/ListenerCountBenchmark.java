@@ -0,0 +1,51 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Cost of {@link PluginManager#sendMessage(String, String, Object)} depending on the number
+ * of listeners subscribed to the tag.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class ListenerCountBenchmark {
+
+	private static final String TAG = "benchmark:listeners";
+
+	@Param({"1", "4", "16", "64"})
+	public int listenerCount;
+
+	private PluginProxy proxy;
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		proxy = BenchmarkPlugins.load("benchmark", p -> {
+			for (int i = 0; i < listenerCount; ++i) {
+				p.addMessageListener(TAG, new MessageListener() {
+					@Override
+					public void handleMessage(String sender, String tag, Object data) {
+						blackhole.consume(data);
+					}
+				});
+			}
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkPlugins.unload(proxy);
+	}
+
+	@Benchmark
+	public void sendMessage() {
+		proxy.sendMessage(TAG, TAG);
+	}
+
+}
@@ -0,0 +1,49 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Time spent by the sender when the listener is slow: synchronous call versus posting
+ * the message into a mailbox.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MailboxBenchmark {
+
+	@Param({"0", "1000", "100000"})
+	public long listenerWork;
+
+	private MessageListener syncListener;
+	private MessageListener asyncListener;
+	private Mailbox mailbox;
+
+	@Setup
+	public void setup() {
+		syncListener = (sender, tag, data) -> Blackhole.consumeCPU(listenerWork);
+		mailbox = new Mailbox("benchmark", 1024, Mailbox.OverflowPolicy.DROP_OLDEST);
+		asyncListener = mailbox.wrap(syncListener);
+	}
+
+	@TearDown
+	public void tearDown() {
+		mailbox.close();
+	}
+
+	@Benchmark
+	public void synchronousDelivery() {
+		syncListener.handleMessage("benchmark", "benchmark:slow", null);
+	}
+
+	@Benchmark
+	public void mailboxDelivery() {
+		asyncListener.handleMessage("benchmark", "benchmark:slow", null);
+	}
+
+}
@@ -0,0 +1,68 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Concurrent publishing through the dispatch table, alone and while another thread keeps
+ * registering and unregistering listeners. Exact delivery under churn is checked by
+ * MessageBusConcurrencyTest.
+ */
+@State(Scope.Group)
+@BenchmarkMode(Mode.Throughput)
+@OutputTimeUnit(TimeUnit.MICROSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageBusConcurrencyBenchmark {
+
+	private static final String TAG = "benchmark:concurrent";
+	private static final String CHURN_TAG = "benchmark:churn";
+
+	private final MessageDispatchTable table = new MessageDispatchTable();
+	private final LongAdder delivered = new LongAdder();
+	private final MessageListener churnListener = (sender, tag, data) -> { };
+	private int churnCounter = 0;
+
+	@Setup
+	public void setup() {
+		table.add(TAG, (sender, tag, data) -> delivered.increment());
+	}
+
+	private void publish() {
+		for (MessageListener listener : table.get(TAG)) {
+			listener.handleMessage("benchmark", TAG, null);
+		}
+	}
+
+	@Benchmark
+	@Group("publishOnly")
+	@GroupThreads(4)
+	public void publishOnly() {
+		publish();
+	}
+
+	@Benchmark
+	@Group("publishWithChurn")
+	@GroupThreads(3)
+	public void publishWithChurn() {
+		publish();
+	}
+
+	@Benchmark
+	@Group("publishWithChurn")
+	@GroupThreads(1)
+	public void churn(Blackhole blackhole) {
+		if ((churnCounter++ & 1) == 0) {
+			blackhole.consume(table.add(CHURN_TAG, churnListener));
+			blackhole.consume(table.add(TAG, churnListener));
+		} else {
+			blackhole.consume(table.remove(TAG, churnListener));
+			blackhole.consume(table.remove(CHURN_TAG, churnListener));
+		}
+	}
+
+}
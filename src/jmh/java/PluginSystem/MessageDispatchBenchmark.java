@@ -0,0 +1,86 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Compares the interned tag-ID dispatch table with the former map-of-sets dispatch.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MessageDispatchBenchmark {
+
+	private static final int LISTENERS_PER_TAG = 3;
+
+	@Param({"10", "100", "1000"})
+	public int tagCount;
+
+	private String[] tags;
+	private int[] tagIds;
+	private int next = 0;
+	private final Map<String, Set<MessageListener>> mapOfSets = new HashMap<>();
+	private final MessageDispatchTable table = new MessageDispatchTable();
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		tags = new String[tagCount];
+		tagIds = new int[tagCount];
+		for (int i = 0; i < tagCount; ++i) {
+			String tag = "benchmark:tag-" + i;
+			tags[i] = tag;
+			Set<MessageListener> set = new HashSet<>();
+			for (int j = 0; j < LISTENERS_PER_TAG; ++j) {
+				MessageListener listener = (sender, t, data) -> blackhole.consume(data);
+				set.add(listener);
+				table.add(tag, listener);
+			}
+			mapOfSets.put(tag, set);
+			tagIds[i] = table.lookup(tag);
+		}
+	}
+
+	private int nextIndex() {
+		int i = next;
+		next = (i + 1 == tagCount) ? 0 : i + 1;
+		return i;
+	}
+
+	@Benchmark
+	public void mapOfSets() {
+		String tag = tags[nextIndex()];
+		Set<MessageListener> listeners = mapOfSets.getOrDefault(tag, null);
+		if (listeners != null) {
+			for (MessageListener listener : listeners) {
+				listener.handleMessage("benchmark", tag, tag);
+			}
+		}
+	}
+
+	@Benchmark
+	public void dispatchTableByTag() {
+		String tag = tags[nextIndex()];
+		for (MessageListener listener : table.get(tag)) {
+			listener.handleMessage("benchmark", tag, tag);
+		}
+	}
+
+	@Benchmark
+	public void dispatchTableById() {
+		int id = tagIds[nextIndex()];
+		String tag = table.getTag(id);
+		for (MessageListener listener : table.get(id)) {
+			listener.handleMessage("benchmark", tag, tag);
+		}
+	}
+
+}
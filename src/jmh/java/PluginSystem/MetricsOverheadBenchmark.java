@@ -0,0 +1,54 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+import org.openjdk.jmh.infra.Blackhole;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Overhead of the message bus instrumentation, which is on by default: invocation of a raw
+ * listener versus the same listener counted and sampled by {@link MessageBusMetrics}, and
+ * the cost of a histogram record.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class MetricsOverheadBenchmark {
+
+	private static final String TAG = "benchmark:metrics";
+
+	private MessageListener raw;
+	private MessageListener instrumented;
+	private final LatencyHistogram histogram = new LatencyHistogram();
+	private long value = 0;
+
+	@Setup
+	public void setup(Blackhole blackhole) {
+		raw = (sender, tag, data) -> blackhole.consume(data);
+		instrumented = PluginManager.getInstance().getMetrics().instrument("benchmark", TAG, raw);
+	}
+
+	@TearDown
+	public void tearDown() {
+		PluginManager.getInstance().getMetrics().release(instrumented);
+	}
+
+	@Benchmark
+	public void rawListener() {
+		raw.handleMessage("benchmark", TAG, this);
+	}
+
+	@Benchmark
+	public void instrumentedListener() {
+		instrumented.handleMessage("benchmark", TAG, this);
+	}
+
+	@Benchmark
+	public void histogramRecord() {
+		histogram.record(value = (value * 31 + 17) & 0xFFFFF);
+	}
+
+}
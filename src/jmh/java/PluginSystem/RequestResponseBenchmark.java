@@ -0,0 +1,63 @@
+package PluginSystem;
+
+import org.openjdk.jmh.annotations.*;
+
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Request/response round trips through {@link PluginProxy}: the future-based API against
+ * the legacy seq-based one, with a synchronous and with a mailbox-backed responder.
+ */
+@State(Scope.Thread)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.NANOSECONDS)
+@Warmup(iterations = 3, time = 1)
+@Measurement(iterations = 5, time = 1)
+@Fork(1)
+public class RequestResponseBenchmark {
+
+	private PluginProxy requester;
+	private PluginProxy responder;
+
+	@Setup
+	public void setup() {
+		requester = BenchmarkPlugins.load("benchmark", p -> { });
+		responder = BenchmarkPlugins.load("benchmark_responder", p -> {
+			MessageListener echo = (sender, tag, data) -> {
+				Map<String, Object> reply = new HashMap<>();
+				reply.put("seq", (data instanceof Map) ? ((Map) data).get("seq") : null);
+				reply.put("data", data);
+				p.sendMessage(sender, reply);
+			};
+			p.addMessageListener("benchmark:echo", echo);
+			p.enableAsyncDelivery(1024, Mailbox.OverflowPolicy.BLOCK);
+			p.addMessageListener("benchmark:async-echo", echo);
+		});
+	}
+
+	@TearDown
+	public void tearDown() {
+		BenchmarkPlugins.unload(requester);
+		BenchmarkPlugins.unload(responder);
+	}
+
+	@Benchmark
+	public Object request() {
+		return requester.request("benchmark:echo", "ping", 1000).join();
+	}
+
+	@Benchmark
+	public Object requestAsyncResponder() {
+		return requester.request("benchmark:async-echo", "ping", 1000).join();
+	}
+
+	@Benchmark
+	public Object legacyResponseListener() {
+		Object[] result = new Object[1];
+		requester.sendMessage("benchmark:echo", new HashMap<String, Object>(), (sender, data) -> result[0] = data);
+		return result[0];
+	}
+
+}
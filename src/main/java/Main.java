@@ -1,9 +1,6 @@
 import PluginSystem.PluginManager;
 
 import java.io.IOException;
-import java.nio.file.DirectoryStream;
-import java.nio.file.Files;
-import java.nio.file.Path;
 
 public class Main {
     public static void main(String[] args) {
@@ -12,10 +9,9 @@ public class Main {
         pluginManager.loadPluginByPackageName("PluginGroovySupport");
         pluginManager.loadPluginByPackageName("PluginGUI");
         try{
-            Path pluginsDir = pluginManager.pluginsDir;
-            DirectoryStream<Path> directoryStream = Files.newDirectoryStream(pluginsDir);
-            for (Path path : directoryStream) {
-                pluginManager.tryLoadPluginByPath(path);
+            pluginManager.loadPluginsFromDirectory(pluginManager.pluginsDir);
+            if (!"false".equals(System.getProperty("minachan.reload"))) {
+                pluginManager.watchPluginsDirectory();
             }
         } catch (IOException e) {
             throw new RuntimeException(e);
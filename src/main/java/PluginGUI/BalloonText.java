@@ -0,0 +1,321 @@
+package PluginGUI;
+
+import java.awt.*;
+import java.awt.font.*;
+import java.text.AttributedString;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Locale;
+import java.util.Map;
+
+/**
+ * Phrase laid out for the balloon: wrapped at word boundaries to the given width, every line
+ * centered. Understands a small subset of HTML: b (strong), i (em), u, br, the common named
+ * entities and numeric character references. Other tags are dropped, whitespace is collapsed
+ * like in HTML, a '<' that does not start a tag and an unknown or invalid reference are shown
+ * as text. Style tags nest and a tag left open lasts to the end of the phrase.
+ * A layout is immutable and may be drawn any number of times.
+ */
+final class BalloonText {
+
+	private static final FontRenderContext FONT_RENDER_CONTEXT = new FontRenderContext(null,
+			RenderingHints.VALUE_TEXT_ANTIALIAS_ON, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+	private static final Map<String, Character> ENTITIES = new HashMap<>();
+
+	static {
+		ENTITIES.put("amp", '&');
+		ENTITIES.put("lt", '<');
+		ENTITIES.put("gt", '>');
+		ENTITIES.put("quot", '"');
+		ENTITIES.put("apos", '\'');
+		ENTITIES.put("nbsp", '\u00a0');
+		ENTITIES.put("laquo", '«');
+		ENTITIES.put("raquo", '»');
+		ENTITIES.put("mdash", '—');
+		ENTITIES.put("ndash", '–');
+		ENTITIES.put("hellip", '…');
+	}
+
+	static final int BOLD = 1;
+	static final int ITALIC = 2;
+	static final int UNDERLINE = 4;
+	private static final int STYLE_COUNT = 3;
+
+	/* Строки подряд, null - пустая строка от <br><br> */
+	private final TextLayout[] lines;
+	private final float[] baselines;
+	private final float[] advances;
+	private final int width;
+	private final int height;
+
+	private BalloonText(TextLayout[] lines, float[] baselines, float[] advances, int width, int height) {
+		this.lines = lines;
+		this.baselines = baselines;
+		this.advances = advances;
+		this.width = width;
+		this.height = height;
+	}
+
+	/**
+	 * Parses the markup and breaks it into lines no wider than wrapWidth.
+	 */
+	static BalloonText layout(String markup, Font font, float wrapWidth) {
+		List<Paragraph> paragraphs = parse(markup);
+		List<TextLayout> lines = new ArrayList<>();
+		List<Float> baselines = new ArrayList<>();
+		List<Float> advances = new ArrayList<>();
+		LineMetrics emptyLine = font.getLineMetrics(" ", FONT_RENDER_CONTEXT);
+		float y = 0;
+		float maxAdvance = 0;
+		for (Paragraph paragraph : paragraphs) {
+			if (paragraph.text.length() == 0) {
+				lines.add(null);
+				baselines.add(y + emptyLine.getAscent());
+				advances.add(0f);
+				y += emptyLine.getHeight();
+				continue;
+			}
+			AttributedString text = paragraph.toAttributedString(font);
+			LineBreakMeasurer measurer = new LineBreakMeasurer(text.getIterator(), FONT_RENDER_CONTEXT);
+			int end = paragraph.text.length();
+			while (measurer.getPosition() < end) {
+				TextLayout line = measurer.nextLayout(wrapWidth);
+				float advance = line.getVisibleAdvance();
+				lines.add(line);
+				baselines.add(y + line.getAscent());
+				advances.add(advance);
+				maxAdvance = Math.max(maxAdvance, advance);
+				y += line.getAscent() + line.getDescent() + line.getLeading();
+			}
+		}
+		int count = lines.size();
+		float[] baselineArray = new float[count];
+		float[] advanceArray = new float[count];
+		for (int i = 0; i < count; ++i) {
+			baselineArray[i] = baselines.get(i);
+			advanceArray[i] = advances.get(i);
+		}
+		return new BalloonText(lines.toArray(new TextLayout[0]), baselineArray, advanceArray,
+				(int) Math.ceil(maxAdvance), (int) Math.ceil(y));
+	}
+
+	/**
+	 * Draws the lines centered in a box of the given width with its top left corner at (x, y).
+	 */
+	void paint(Graphics2D g, float x, float y, float boxWidth) {
+		for (int i = 0; i < lines.length; ++i) {
+			if (lines[i] != null) {
+				lines[i].draw(g, x + (boxWidth - advances[i]) / 2, y + baselines[i]);
+			}
+		}
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	int getLineCount() {
+		return lines.length;
+	}
+
+	/**
+	 * Splits the markup into paragraphs at line breaks, an empty paragraph is a blank line.
+	 */
+	static List<Paragraph> parse(String markup) {
+		List<Paragraph> paragraphs = new ArrayList<>();
+		Paragraph paragraph = new Paragraph();
+		/* Глубина вложенности каждого стиля, стиль действует, пока она больше нуля */
+		int[] depth = new int[STYLE_COUNT];
+		int style = 0;
+		int length = markup.length();
+		int i = 0;
+		while (i < length) {
+			char c = markup.charAt(i);
+			if (c == '<') {
+				int close = isTagStart(markup, i) ? markup.indexOf('>', i + 1) : -1;
+				if (close > 0) {
+					int start = i + 1;
+					boolean end = markup.charAt(start) == '/';
+					if (end) {
+						++start;
+					}
+					int nameEnd = start;
+					while (nameEnd < close && !Character.isWhitespace(markup.charAt(nameEnd)) && markup.charAt(nameEnd) != '/') {
+						++nameEnd;
+					}
+					boolean selfClosing = markup.charAt(close - 1) == '/';
+					String name = markup.substring(start, nameEnd).toLowerCase(Locale.ROOT);
+					int flag = 0;
+					switch (name) {
+						case "b": case "strong": flag = BOLD; break;
+						case "i": case "em": flag = ITALIC; break;
+						case "u": flag = UNDERLINE; break;
+						case "br":
+							paragraph.trim();
+							paragraphs.add(paragraph);
+							paragraph = new Paragraph();
+							break;
+						default:
+							// Остальные теги игнорируются
+					}
+					if (flag != 0 && !selfClosing) {
+						int index = Integer.numberOfTrailingZeros(flag);
+						if (!end) {
+							++depth[index];
+						} else if (depth[index] > 0) {
+							--depth[index];
+						}
+						style = (depth[index] > 0) ? (style | flag) : (style & ~flag);
+					}
+					i = close + 1;
+					continue;
+				}
+			} else if (c == '&') {
+				int semicolon = markup.indexOf(';', i + 1);
+				if (semicolon > 0 && semicolon - i <= 10) {
+					int codePoint = entity(markup.substring(i + 1, semicolon));
+					if (codePoint >= 0) {
+						if (Character.isWhitespace(codePoint)) {
+							paragraph.appendSpace(style);
+						} else {
+							paragraph.append(codePoint, style);
+						}
+						i = semicolon + 1;
+						continue;
+					}
+				}
+			} else if (Character.isWhitespace(c)) {
+				paragraph.appendSpace(style);
+				++i;
+				continue;
+			}
+			paragraph.append(c, style);
+			++i;
+		}
+		paragraph.trim();
+		// Как в HTML, <br> в конце фразы не добавляет пустую строку
+		if (paragraph.text.length() > 0 || paragraphs.isEmpty()) {
+			paragraphs.add(paragraph);
+		}
+		return paragraphs;
+	}
+
+	/* Тег начинается с буквы или с '/' и буквы, иначе '<' - обычный символ */
+	private static boolean isTagStart(String markup, int i) {
+		int next = i + 1;
+		if (next < markup.length() && markup.charAt(next) == '/') {
+			++next;
+		}
+		return next < markup.length() && Character.isLetter(markup.charAt(next));
+	}
+
+	private static int entity(String name) {
+		if (name.startsWith("#")) {
+			boolean hex = name.startsWith("#x") || name.startsWith("#X");
+			String digits = name.substring(hex ? 2 : 1);
+			int radix = hex ? 16 : 10;
+			if (digits.isEmpty() || digits.length() > 7) {
+				return -1;
+			}
+			int codePoint = 0;
+			for (int i = 0; i < digits.length(); ++i) {
+				int digit = Character.digit(digits.charAt(i), radix);
+				if (digit < 0) {
+					return -1;
+				}
+				codePoint = codePoint * radix + digit;
+			}
+			// NUL, управляющие символы и половинки суррогатных пар не показываются
+			if (!Character.isValidCodePoint(codePoint) ||
+					(Character.isISOControl(codePoint) && !Character.isWhitespace(codePoint)) ||
+					(codePoint >= Character.MIN_SURROGATE && codePoint <= Character.MAX_SURROGATE)) {
+				return -1;
+			}
+			return codePoint;
+		}
+		Character c = ENTITIES.get(name);
+		return (c != null) ? c : -1;
+	}
+
+	/**
+	 * Text between line breaks with the style of every character.
+	 */
+	static final class Paragraph {
+
+		final StringBuilder text = new StringBuilder();
+		/* Пары (начало, стиль) участков с одинаковым стилем */
+		final List<int[]> runs = new ArrayList<>();
+
+		void append(int codePoint, int style) {
+			if (runs.isEmpty() || runs.get(runs.size() - 1)[1] != style) {
+				runs.add(new int[] { text.length(), style });
+			}
+			text.appendCodePoint(codePoint);
+		}
+
+		void appendSpace(int style) {
+			if (text.length() > 0 && text.charAt(text.length() - 1) != ' ') {
+				append(' ', style);
+			}
+		}
+
+		/* Убирает пробел в конце и участки стиля за ним */
+		void trim() {
+			int length = text.length();
+			while (length > 0 && text.charAt(length - 1) == ' ') {
+				--length;
+			}
+			text.setLength(length);
+			while (!runs.isEmpty() && runs.get(runs.size() - 1)[0] >= length) {
+				runs.remove(runs.size() - 1);
+			}
+		}
+
+		String getText() {
+			return text.toString();
+		}
+
+		/**
+		 * Style flags (BOLD, ITALIC, UNDERLINE) of the character at the index.
+		 */
+		int getStyle(int index) {
+			int style = 0;
+			for (int[] run : runs) {
+				if (run[0] > index) {
+					break;
+				}
+				style = run[1];
+			}
+			return style;
+		}
+
+		AttributedString toAttributedString(Font font) {
+			int length = text.length();
+			AttributedString result = new AttributedString(text.toString());
+			for (int i = 0; i < runs.size(); ++i) {
+				int start = runs.get(i)[0];
+				int end = (i + 1 < runs.size()) ? runs.get(i + 1)[0] : length;
+				int style = runs.get(i)[1];
+				int fontStyle = font.getStyle();
+				if ((style & BOLD) != 0) {
+					fontStyle |= Font.BOLD;
+				}
+				if ((style & ITALIC) != 0) {
+					fontStyle |= Font.ITALIC;
+				}
+				result.addAttribute(TextAttribute.FONT, (fontStyle != font.getStyle()) ? font.deriveFont(fontStyle) : font, start, end);
+				if ((style & UNDERLINE) != 0) {
+					result.addAttribute(TextAttribute.UNDERLINE, TextAttribute.UNDERLINE_ON, start, end);
+				}
+			}
+			return result;
+		}
+
+	}
+
+}
@@ -5,24 +5,59 @@ import javax.swing.border.EmptyBorder;
 import java.awt.*;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.Objects;
 
 class BalloonWidget extends JPanel implements MouseListener {
 	
+	private static final int MAX_WIDTH = 400;
+	private static final int MIN_WIDTH = 120;
+	private static final int MIN_HEIGHT = 40;
+	private static final int TEXT_CACHE_SIZE = 64;
+	
 	private final MainWindow mainWindow;
+	private BalloonText text = null;
+	/* Разметка фраз по тексту, шрифту и ширине, разбор и перенос строк - самая дорогая часть показа */
+	private final Map<TextKey, BalloonText> texts = new LinkedHashMap<TextKey, BalloonText>(16, 0.75f, true) {
+		@Override
+		protected boolean removeEldestEntry(Map.Entry<TextKey, BalloonText> eldest) {
+			return size() > TEXT_CACHE_SIZE;
+		}
+	};
 	
-	BalloonWidget(JComponent component, MainWindow mainWindow) {
+	BalloonWidget(MainWindow mainWindow) {
 		super();
 		this.mainWindow = mainWindow;
 		setBackground(new Color(0, 0, 0, 0));
-		setPreferredSize(new Dimension(400, 300));
-		setLayout(new BorderLayout());
-		setBorder(new EmptyBorder(5, 5, 5, 5));
-		add(component, BorderLayout.CENTER);
+		setBorder(new EmptyBorder(8, 10, 8, 10));
+		setPreferredSize(new Dimension(MIN_WIDTH, MIN_HEIGHT));
 		addMouseListener(this);
 	}
 	
+	/**
+	 * Shows the text in the balloon and sizes the balloon to fit it, up to 400 pixels wide.
+	 * The layout of a text already shown with this font is reused.
+	 */
+	void setText(String text, Font font) {
+		Insets insets = getInsets();
+		int wrapWidth = MAX_WIDTH - insets.left - insets.right;
+		TextKey key = new TextKey(text, font, wrapWidth);
+		BalloonText layout = texts.get(key);
+		if (layout == null) {
+			layout = BalloonText.layout(text, font, wrapWidth);
+			texts.put(key, layout);
+		}
+		this.text = layout;
+		setPreferredSize(new Dimension(
+				Math.max(MIN_WIDTH, layout.getWidth() + insets.left + insets.right),
+				Math.max(MIN_HEIGHT, layout.getHeight() + insets.top + insets.bottom)
+		));
+		repaint();
+	}
+	
 	private void close() {
-		mainWindow.showBalloon((String) null);
+		mainWindow.closeBalloon();
 	}
 	
 	@Override
@@ -36,6 +71,21 @@ class BalloonWidget extends JPanel implements MouseListener {
 		g.fillRoundRect(0, 0, getWidth() - 1, getHeight() - 1, 10, 10);
 		g.setColor(Color.BLACK);
 		g.drawRoundRect(0, 0, getWidth() - 1, getHeight() - 1, 10, 10);
+		if (text != null && g instanceof Graphics2D) {
+			Graphics2D g2d = (Graphics2D) g;
+			g2d.setComposite(AlphaComposite.SrcOver);
+			Map<?, ?> hints = (Map<?, ?>) Toolkit.getDefaultToolkit().getDesktopProperty("awt.font.desktophints");
+			if (hints != null) {
+				g2d.addRenderingHints(hints);
+			} else {
+				g2d.setRenderingHint(RenderingHints.KEY_TEXT_ANTIALIASING, RenderingHints.VALUE_TEXT_ANTIALIAS_ON);
+			}
+			g2d.setColor(Color.BLACK);
+			Insets insets = getInsets();
+			int boxWidth = getWidth() - insets.left - insets.right;
+			int boxHeight = getHeight() - insets.top - insets.bottom;
+			text.paint(g2d, insets.left, insets.top + Math.max(0, (boxHeight - text.getHeight()) / 2), boxWidth);
+		}
 	}
 	
 	@Override
@@ -69,4 +119,32 @@ class BalloonWidget extends JPanel implements MouseListener {
 	public void mouseExited(MouseEvent e) {
 	}
 	
+	private static final class TextKey {
+		
+		private final String text;
+		private final Font font;
+		private final int width;
+		
+		TextKey(String text, Font font, int width) {
+			this.text = text;
+			this.font = font;
+			this.width = width;
+		}
+		
+		@Override
+		public boolean equals(Object o) {
+			if (!(o instanceof TextKey)) {
+				return false;
+			}
+			TextKey key = (TextKey) o;
+			return width == key.width && text.equals(key.text) && Objects.equals(font, key.font);
+		}
+		
+		@Override
+		public int hashCode() {
+			return (text.hashCode() * 31 + Objects.hashCode(font)) * 31 + width;
+		}
+		
+	}
+	
 }
@@ -9,16 +9,29 @@ import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
 import java.awt.event.MouseMotionListener;
 import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
 
 class CharacterWidget extends JPanel implements MouseListener, MouseMotionListener {
 	
 	private final MainWindow mainWindow;
-	private Image characterImage;
-	private Point clickPos;
+	private SkinImage characterImage;
+	private int frameIndex = 0;
+	private final SkinAnimator animator;
+	/* Перетаскивание: события мыши только накапливают смещение, окно двигается раз в кадр экрана */
+	private final Timer dragTimer;
+	private int pointerX;
+	private int pointerY;
+	private int dragDx;
+	private int dragDy;
 	private boolean dragging;
 	private boolean flip;
+	/* Масштаб персонажа, выбранный пользователем */
+	private double scale = 1.0;
 	private Skin currentSkin;
 	private String currentImageName = "normal";
+	/* Номер последнего запроса изображения, опоздавшие изображения не показываются */
+	private int imageRequest = 0;
 	
 	CharacterWidget(MainWindow mainWindow) {
 		super();
@@ -26,17 +39,50 @@ class CharacterWidget extends JPanel implements MouseListener, MouseMotionListen
 		setBackground(new Color(0, 0, 0, 0));
 		addMouseListener(this);
 		addMouseMotionListener(this);
+		animator = new SkinAnimator(this, this::nextFrame);
+		dragTimer = new Timer(DEFAULT_FRAME_MILLIS, e -> applyDrag());
+		dragTimer.setCoalesce(true);
+		try {
+			scale = clampScale(Double.parseDouble(MainWindow.config.get("character.scale", "1.0")));
+		} catch (NumberFormatException e) {
+			// Масштаб по умолчанию
+		}
+	}
+	
+	private static final int DEFAULT_FRAME_MILLIS = 16;
+	
+	/**
+	 * Duration of one frame of the display the widget is on.
+	 */
+	private int frameMillis() {
+		GraphicsConfiguration configuration = getGraphicsConfiguration();
+		if (configuration != null) {
+			int refreshRate = configuration.getDevice().getDisplayMode().getRefreshRate();
+			if (refreshRate != DisplayMode.REFRESH_RATE_UNKNOWN && refreshRate > 0) {
+				return Math.max(1, 1000 / refreshRate);
+			}
+		}
+		return DEFAULT_FRAME_MILLIS;
+	}
+	
+	static double clampScale(double scale) {
+		return Math.max(0.25, Math.min(4.0, scale));
 	}
 	
 	@Override
 	protected void paintComponent(Graphics g) {
 		super.paintComponent(g);
 		if (characterImage != null) {
-			if (g instanceof Graphics2D) {
-				Graphics2D g2d = (Graphics2D)g;
-				g2d.setComposite(AlphaComposite.getInstance(AlphaComposite.SRC));
-			}
-			g.drawImage(characterImage, 0, 0, this);
+			Graphics2D g2d = (Graphics2D) g;
+			// Фон окна прозрачный: область очищается, кадр накладывается обычным образом
+			g2d.setComposite(AlphaComposite.Clear);
+			g2d.fillRect(0, 0, getWidth(), getHeight());
+			g2d.setComposite(AlphaComposite.SrcOver);
+			// Вариант кадра готовится сразу в пикселях экрана, с учётом HiDPI
+			GraphicsConfiguration configuration = getGraphicsConfiguration();
+			double deviceScale = (configuration != null) ? configuration.getDefaultTransform().getScaleX() : 1.0;
+			Image frame = characterImage.getFrame(frameIndex, scale * deviceScale, flip);
+			g2d.drawImage(frame, 0, 0, scaled(characterImage.getWidth()), scaled(characterImage.getHeight()), null);
 		} else {
 			g.setColor(Color.WHITE);
 			g.fillRect(0, 0, getWidth() - 1, getHeight() - 1);
@@ -69,9 +115,16 @@ class CharacterWidget extends JPanel implements MouseListener, MouseMotionListen
 	
 	@Override
 	public void mousePressed(MouseEvent e) {
-		clickPos = e.getLocationOnScreen();
+		pointerX = e.getXOnScreen();
+		pointerY = e.getYOnScreen();
 		if (SwingUtilities.isLeftMouseButton(e)) {
 			dragging = true;
+			dragDx = 0;
+			dragDy = 0;
+			// Границы экрана читаются один раз за перетаскивание
+			mainWindow.invalidateScreenBounds();
+			dragTimer.setDelay(frameMillis());
+			dragTimer.start();
 		} else if (SwingUtilities.isRightMouseButton(e)) {
 			JPopupMenu popupMenu = new JPopupMenu();
 			popupMenu.add(mainWindow.optionsAction);
@@ -90,8 +143,10 @@ class CharacterWidget extends JPanel implements MouseListener, MouseMotionListen
 	
 	@Override
 	public void mouseReleased(MouseEvent e) {
-		if (SwingUtilities.isLeftMouseButton(e)) {
+		if (SwingUtilities.isLeftMouseButton(e) && dragging) {
+			applyDrag();
 			dragging = false;
+			dragTimer.stop();
 		}
 	}
 	
@@ -101,15 +156,22 @@ class CharacterWidget extends JPanel implements MouseListener, MouseMotionListen
 	
 	@Override
 	public void mouseDragged(MouseEvent e) {
-		int dx = e.getXOnScreen() - clickPos.x;
-		int dy = e.getYOnScreen() - clickPos.y;
+		int x = e.getXOnScreen();
+		int y = e.getYOnScreen();
 		if (dragging) {
-			mainWindow.setPosition(new Point(
-					mainWindow.getX() + dx,
-					mainWindow.getY() + dy
-			));
+			dragDx += x - pointerX;
+			dragDy += y - pointerY;
+		}
+		pointerX = x;
+		pointerY = y;
+	}
+	
+	private void applyDrag() {
+		if (dragDx != 0 || dragDy != 0) {
+			mainWindow.setPosition(mainWindow.getX() + dragDx, mainWindow.getY() + dragDy);
+			dragDx = 0;
+			dragDy = 0;
 		}
-		clickPos = e.getLocationOnScreen();
 	}
 	
 	@Override
@@ -122,27 +184,101 @@ class CharacterWidget extends JPanel implements MouseListener, MouseMotionListen
 	
 	void setImage(String name) {
 		currentImageName = name;
-		characterImage = (currentSkin != null) ? currentSkin.getImage(name) : null;
+		int request = ++imageRequest;
+		if (currentSkin == null) {
+			showImage(null);
+			return;
+		}
+		// Пока изображение декодируется, показывается предыдущее
+		mainWindow.getImageCache().load(currentSkin, name).whenComplete((image, e) -> {
+			if (e != null) {
+				e.printStackTrace();
+			}
+			MainWindow.runOnEventThread(() -> {
+				if (request == imageRequest) {
+					showImage(image);
+				}
+			});
+		});
+	}
+	
+	private void showImage(SkinImage image) {
+		showImage(image, 0);
+	}
+	
+	private void showImage(SkinImage image, int frameIndex) {
+		characterImage = image;
+		this.frameIndex = frameIndex;
 		if (characterImage != null) {
-			setPreferredSize(new Dimension(characterImage.getWidth(this),
-					characterImage.getHeight(this)));
+			setPreferredSize(new Dimension(scaled(characterImage.getWidth()), scaled(characterImage.getHeight())));
 		} else {
 			setPreferredSize(new Dimension(300, 300));
 		}
 		repaint();
 		mainWindow.updateSizes();
+		animator.play(characterImage);
+	}
+	
+	private void nextFrame() {
+		if (characterImage != null && characterImage.isAnimated()) {
+			frameIndex = (frameIndex + 1) % characterImage.getFrameCount();
+			// Перерисовывается только область персонажа
+			repaint(0, 0, scaled(characterImage.getWidth()), scaled(characterImage.getHeight()));
+		}
+	}
+	
+	private int scaled(int size) {
+		return Math.max(1, (int) Math.round(size * scale));
+	}
+	
+	void setScale(double scale) {
+		scale = clampScale(scale);
+		if (scale != this.scale) {
+			this.scale = scale;
+			MainWindow.config.set("character.scale", String.valueOf(scale));
+			showImage(characterImage, frameIndex);
+		}
 	}
 	
+	double getScale() {
+		return scale;
+	}
+	
+	/**
+	 * Mirrors the character horizontally.
+	 */
+	void setFlip(boolean flip) {
+		if (flip != this.flip) {
+			this.flip = flip;
+			repaint();
+		}
+	}
+	
+	/**
+	 * Switches to the skin. Its first image is decoded in the background, the window is
+	 * placed by the size of that image when it is shown.
+	 */
 	void setSkin(Skin skin) {
 		currentSkin = skin;
-		setImage(currentImageName);
-		if (skin.isBuiltin()) {
-			MainWindow.properties.setProperty("skin.builtin", "true");
-			MainWindow.properties.setProperty("skin.name", skin.getName());
-		} else {
-			MainWindow.properties.setProperty("skin.builtin", "false");
-			MainWindow.properties.setProperty("skin.name", skin.getBasePath().toString());
-		}
+		int request = ++imageRequest;
+		mainWindow.getImageCache().load(skin, currentImageName).whenComplete((image, e) -> {
+			if (e != null) {
+				// Остаётся прежнее изображение
+				e.printStackTrace();
+				return;
+			}
+			MainWindow.runOnEventThread(() -> {
+				if (request == imageRequest) {
+					showImage(image);
+					mainWindow.setDefaultLocation();
+				}
+			});
+		});
+		mainWindow.getImageCache().prefetch(skin);
+		Map<String, String> skinConfig = new HashMap<>();
+		skinConfig.put("skin.builtin", String.valueOf(skin.isBuiltin()));
+		skinConfig.put("skin.name", skin.isBuiltin() ? skin.getName() : skin.getBasePath().toString());
+		MainWindow.config.set(skinConfig);
 	}
 	
 	void loadSkin(Path path) {
@@ -0,0 +1,174 @@
+package PluginGUI;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.nio.channels.Channels;
+import java.nio.channels.FileChannel;
+import java.nio.file.AtomicMoveNotSupportedException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.nio.file.StandardCopyOption;
+import java.nio.file.StandardOpenOption;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Properties;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * GUI settings kept in config.properties.
+ * Reads go to an immutable snapshot and never lock. Changes replace the snapshot at once and
+ * are written on a background thread after -Dminachan.config.flushDelay milliseconds (500 by
+ * default), so changes made in a row are written together. The file is written to a temporary
+ * file, synced and moved over the old one, so a crash leaves either the old or the new settings.
+ */
+final class ConfigStore {
+
+	private static final long DEFAULT_FLUSH_DELAY = 500;
+	private static final String COMMENT = "MinaChan GUI configuration";
+
+	private final ScheduledExecutorService writer = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "config-writer");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final long flushDelay = Math.max(0, Long.getLong("minachan.config.flushDelay", DEFAULT_FLUSH_DELAY));
+	private volatile Map<String, String> values = Collections.emptyMap();
+	/* Изменяются под монитором хранилища */
+	private Path file = null;
+	private long version = 0;
+	private long writtenVersion = 0;
+	private ScheduledFuture<?> flushTask = null;
+	/* Запись файла, отдельно от монитора хранилища, чтобы изменения не ждали диск */
+	private final Object writeLock = new Object();
+
+	/**
+	 * Reads the settings from the file, which is also where changes are written.
+	 * A missing or unreadable file leaves the settings empty.
+	 */
+	void load(Path file) {
+		Properties properties = new Properties();
+		try (InputStream in = Files.newInputStream(file)) {
+			properties.load(in);
+		} catch (IOException e) {
+			// Файла настроек ещё нет
+		}
+		Map<String, String> loaded = new HashMap<>();
+		for (String key : properties.stringPropertyNames()) {
+			loaded.put(key, properties.getProperty(key));
+		}
+		synchronized (this) {
+			// Изменения, сделанные до загрузки файла, сохраняются
+			if (version != writtenVersion) {
+				loaded.putAll(values);
+			}
+			this.file = file;
+			this.values = Collections.unmodifiableMap(loaded);
+			if (version != writtenVersion) {
+				scheduleFlush();
+			}
+		}
+	}
+
+	String get(String key) {
+		return values.get(key);
+	}
+
+	String get(String key, String defaultValue) {
+		return values.getOrDefault(key, defaultValue);
+	}
+
+	/**
+	 * Immutable view of all settings at this moment.
+	 */
+	Map<String, String> getSnapshot() {
+		return values;
+	}
+
+	void set(String key, String value) {
+		set(Collections.singletonMap(key, value));
+	}
+
+	/**
+	 * Changes several settings at once, readers see either none or all of them.
+	 */
+	synchronized void set(Map<String, String> changes) {
+		if (values.entrySet().containsAll(changes.entrySet())) {
+			return;
+		}
+		Map<String, String> updated = new HashMap<>(values);
+		updated.putAll(changes);
+		values = Collections.unmodifiableMap(updated);
+		++version;
+		scheduleFlush();
+	}
+
+	private void scheduleFlush() {
+		if (file != null && flushTask == null && !writer.isShutdown()) {
+			flushTask = writer.schedule(this::flush, flushDelay, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	/**
+	 * Writes the settings if they were changed since the last write.
+	 */
+	void flush() {
+		synchronized (writeLock) {
+			Map<String, String> snapshot;
+			long snapshotVersion;
+			Path target;
+			synchronized (this) {
+				flushTask = null;
+				if (file == null || version == writtenVersion) {
+					return;
+				}
+				snapshot = values;
+				snapshotVersion = version;
+				target = file;
+			}
+			try {
+				write(target, snapshot);
+				synchronized (this) {
+					writtenVersion = snapshotVersion;
+				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+	}
+
+	private static void write(Path target, Map<String, String> snapshot) throws IOException {
+		Properties properties = new Properties();
+		properties.putAll(snapshot);
+		Path dir = target.toAbsolutePath().getParent();
+		Files.createDirectories(dir);
+		Path temp = Files.createTempFile(dir, target.getFileName().toString(), ".tmp");
+		try {
+			try (FileChannel channel = FileChannel.open(temp, StandardOpenOption.WRITE);
+			     OutputStream out = Channels.newOutputStream(channel)) {
+				properties.store(out, COMMENT);
+				channel.force(true);
+			}
+			try {
+				Files.move(temp, target, StandardCopyOption.ATOMIC_MOVE, StandardCopyOption.REPLACE_EXISTING);
+			} catch (AtomicMoveNotSupportedException e) {
+				Files.move(temp, target, StandardCopyOption.REPLACE_EXISTING);
+			}
+		} finally {
+			Files.deleteIfExists(temp);
+		}
+	}
+
+	/**
+	 * Stops the background writer and writes pending changes on the calling thread.
+	 */
+	void close() {
+		writer.shutdownNow();
+		flush();
+	}
+
+}
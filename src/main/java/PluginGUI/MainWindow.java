@@ -8,10 +8,8 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
-import java.io.IOException;
 import java.io.PrintWriter;
 import java.io.StringWriter;
-import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
@@ -26,10 +24,15 @@ public class MainWindow extends JFrame {
 	private CharacterWidget characterWidget;
 	private BalloonWidget balloonWidget = null;
 	private BalloonWindow balloonWindow = null;
+	private boolean balloonShown = false;
 	OptionsDialog optionsDialog = null;
-	private Timer balloonTimer = null;
+	private final SpeechScheduler speechScheduler = new SpeechScheduler(this::showBalloon);
+	/* Границы рабочей области экрана, перечитываются после смены экрана или начала перетаскивания */
+	private final Rectangle screenBounds = new Rectangle();
+	private boolean screenBoundsValid = false;
+	private final SkinImageCache imageCache = new SkinImageCache(SkinImageCache.defaultMaxBytes());
 	private static final ResourceBundle strings = ResourceBundle.getBundle("gui-strings");
-	static final Properties properties = new Properties();
+	static final ConfigStore config = new ConfigStore();
 	Font balloonTextFont = null;
 	
 	final Action quitAction = new AbstractAction(getString("quit")) {
@@ -43,7 +46,7 @@ public class MainWindow extends JFrame {
 		@Override
 		public void actionPerformed(ActionEvent actionEvent) {
 			optionsDialog.updateOptions();
-			Rectangle screenBounds = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+			Rectangle screenBounds = getScreenBounds();
 			optionsDialog.setLocation(
 					(screenBounds.width - optionsDialog.getWidth()) / 2 + screenBounds.x,
 					(screenBounds.height - optionsDialog.getHeight()) / 2 + screenBounds.y
@@ -57,13 +60,9 @@ public class MainWindow extends JFrame {
 		this.pluginProxy = pluginProxy;
 		pluginProxy.sendMessage("core:get-plugin-data-dir", null, (sender_, data_) -> {
 			dataDirPath = Paths.get(((Map) data_).get("path").toString());
+			config.load(dataDirPath.resolve("config.properties"));
 			try {
-				properties.load(Files.newInputStream(dataDirPath.resolve("config.properties")));
-			} catch (IOException e) {
-				// Configuration file not found: do nothing
-			}
-			try {
-				String lookAndFeelClassName = properties.getProperty("lookAndFeel.className");
+				String lookAndFeelClassName = config.get("lookAndFeel.className");
 				if (lookAndFeelClassName != null) {
 					UIManager.setLookAndFeel(lookAndFeelClassName);
 				}
@@ -71,9 +70,9 @@ public class MainWindow extends JFrame {
 				e.printStackTrace();
 			}
 			{
-				String fontFamily = properties.getProperty("balloon.font.family", "Times New Roman");
-				String fontSizeStr = properties.getProperty("balloon.font.size", "18");
-				String fontStyleStr = properties.getProperty("balloon.font.style", "1");
+				String fontFamily = config.get("balloon.font.family", "Times New Roman");
+				String fontSizeStr = config.get("balloon.font.size", "18");
+				String fontStyleStr = config.get("balloon.font.style", "1");
 				int fontSize = Integer.parseInt(fontSizeStr);
 				int fontStyle = Integer.parseInt(fontStyleStr);
 				balloonTextFont = new Font(fontFamily, fontStyle, fontSize);
@@ -86,12 +85,13 @@ public class MainWindow extends JFrame {
 			setFocusableWindowState(false);
 			setLayout(null);
 			setBackground(new Color(0, 0, 0, 0));
+			addPropertyChangeListener("graphicsConfiguration", e -> invalidateScreenBounds());
 			pack();
 			characterWidget = new CharacterWidget(this);
-			if (!properties.getProperty("skin.builtin", "true").equals("false")) {
-				characterWidget.loadBuiltinSkin(MainWindow.properties.getProperty("skin.name", "variant1"));
+			if (!config.get("skin.builtin", "true").equals("false")) {
+				characterWidget.loadBuiltinSkin(config.get("skin.name", "variant1"));
 			} else {
-				characterWidget.loadSkin(Paths.get(MainWindow.properties.getProperty("skin.name")));
+				characterWidget.loadSkin(Paths.get(config.get("skin.name")));
 			}
 			setDefaultLocation();
 			setContentPane(characterWidget);
@@ -103,17 +103,20 @@ public class MainWindow extends JFrame {
 				}
 			});
 			pluginProxy.addMessageListener("gui:say", (sender, tag, data) -> {
-				runOnEventThread(() -> {
-					Map m = (Map) data;
-					showBalloon(m.get("text").toString(), (int) m.getOrDefault("timeout", BALLOON_DEFAULT_TIMEOUT));
-				});
+				Map m = (Map) data;
+				speechScheduler.say(sender, m.get("text").toString(),
+						(int) m.getOrDefault("timeout", BALLOON_DEFAULT_TIMEOUT), (int) m.getOrDefault("priority", 0));
 			});
 			pluginProxy.addMessageListener("gui:register-extra-action", (sender, tag, data) -> {
 				runOnEventThread(() -> {
 					Map m = (Map) data;
+					String name = m.get("name").toString();
 					String msgTag = m.get("msgTag").toString();
 					Object msgData = m.getOrDefault("msgData", null);
-					PluginAction action = new PluginAction(m.get("name").toString(), sender) {
+					// Перезагруженный плагин регистрирует свои действия заново
+					extraActions.removeIf(action -> action.getPlugin().equals(sender) &&
+							name.equals(action.getValue(Action.NAME)));
+					PluginAction action = new PluginAction(name, sender) {
 						@Override
 						public void actionPerformed(ActionEvent actionEvent) {
 							pluginProxy.sendMessage(msgTag, msgData);
@@ -129,7 +132,6 @@ public class MainWindow extends JFrame {
 					} else {
 						characterWidget.loadSkin(Paths.get(data.toString()));
 					}
-					setDefaultLocation();
 				});
 			});
 			pluginProxy.addMessageListener("gui:set-image", (sender, tag, data) -> {
@@ -137,6 +139,23 @@ public class MainWindow extends JFrame {
 					characterWidget.setImage(data.toString());
 				});
 			});
+			pluginProxy.addMessageListener("gui:set-flip", (sender, tag, data) -> {
+				runOnEventThread(() -> {
+					characterWidget.setFlip(Boolean.parseBoolean(String.valueOf(data)));
+				});
+			});
+			pluginProxy.addMessageListener("gui:query-image-cache", (sender, tag, data) -> {
+				Object seq = (data instanceof Map) ? ((Map) data).get("seq") : null;
+				Map<String, Object> statistics = imageCache.getStatistics();
+				statistics.put("seq", seq);
+				pluginProxy.sendMessage(sender, statistics);
+			});
+			pluginProxy.addMessageListener("gui:query-speech", (sender, tag, data) -> {
+				Object seq = (data instanceof Map) ? ((Map) data).get("seq") : null;
+				Map<String, Object> statistics = speechScheduler.getStatistics();
+				statistics.put("seq", seq);
+				pluginProxy.sendMessage(sender, statistics);
+			});
 			pluginProxy.addMessageListener("core-events:plugin-unload", (sender, tag, data) -> {
 				runOnEventThread(() -> {
 					extraActions.removeIf(action -> action.getPlugin().equals(data));
@@ -150,16 +169,23 @@ public class MainWindow extends JFrame {
 				put("priority", 100);
 			}});
 		});
-		balloonTimer = new Timer(BALLOON_DEFAULT_TIMEOUT, e -> {
-			if (balloonWidget != null) {
-				showBalloon((JComponent) null);
-			}
-		});
-		balloonTimer.setRepeats(false);
+	}
+	
+	Rectangle getScreenBounds() {
+		if (!screenBoundsValid) {
+			screenBounds.setBounds(GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds());
+			screenBoundsValid = true;
+		}
+		return screenBounds;
+	}
+	
+	void invalidateScreenBounds() {
+		screenBoundsValid = false;
 	}
 	
 	void setDefaultLocation() {
-		Rectangle screenBounds = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
+		invalidateScreenBounds();
+		Rectangle screenBounds = getScreenBounds();
 		setLocation(
 				(int)screenBounds.getMaxX() - getWidth(),
 				(int)screenBounds.getMaxY() - getHeight()
@@ -171,8 +197,9 @@ public class MainWindow extends JFrame {
 		Dimension characterSize = characterWidget.getPreferredSize();
 		Rectangle characterBounds = new Rectangle(new Point(0, 0), characterSize);
 		Dimension frameSize = new Dimension(characterSize);
-		if (balloonWidget != null) {
+		if (balloonShown) {
 			Dimension balloonSize = balloonWidget.getPreferredSize();
+			balloonSize.height = Math.min(balloonSize.height, getScreenBounds().height);
 			Rectangle balloonBounds = new Rectangle(
 					new Point(getX() - balloonSize.width, getY()),
 					balloonSize
@@ -191,91 +218,79 @@ public class MainWindow extends JFrame {
 		}
 	}
 	
-	private void showBalloon(JComponent component, int timeout) {
-		if (balloonWidget != null) {
-			if (balloonWindow != null) {
-				balloonWindow.dispose();
-			} else {
-				remove(balloonWidget);
+	/**
+	 * Shows the text in the balloon or hides it if the text is null. The balloon window is
+	 * created once and then only filled with a new text and shown or hidden.
+	 * Called by the speech scheduler, which decides what and how long is shown.
+	 */
+	private void showBalloon(String text) {
+		if (text == null) {
+			if (balloonShown) {
+				balloonShown = false;
+				balloonWindow.setVisible(false);
 			}
-			balloonWindow = null;
-			balloonWidget = null;
+			return;
 		}
-		if (component != null) {
-			balloonWidget = new BalloonWidget(component, this);
+		if (balloonWindow == null) {
+			balloonWidget = new BalloonWidget(this);
 			balloonWindow = new BalloonWindow(balloonWidget);
 		}
+		balloonWidget.setText(text, balloonTextFont);
+		balloonShown = true;
 		updateSizes();
-		if (balloonWindow != null) {
+		if (!balloonWindow.isVisible()) {
 			balloonWindow.setVisible(true);
 		}
-		if (balloonWidget != null) {
-			if (balloonTimer.isRunning()) {
-				balloonTimer.stop();
-			}
-			if (timeout > 0) {
-				balloonTimer.setInitialDelay(timeout);
-				balloonTimer.start();
-			}
-		}
 	}
 	
-	private void showBalloon(JComponent component) {
-		showBalloon(component, BALLOON_DEFAULT_TIMEOUT);
-	}
-	
-	private void showBalloon(String text, int timeout) {
-		if (text != null) {
-			JLabel label = new JLabel("<html><center>" + text + "</center></html>");
-			label.setHorizontalAlignment(JLabel.CENTER);
-			label.setFont(balloonTextFont);
-			showBalloon(label, timeout);
-		} else {
-			showBalloon((JComponent) null);
-		}
-	}
-	
-	void showBalloon(String text) {
-		showBalloon(text, BALLOON_DEFAULT_TIMEOUT);
+	void closeBalloon() {
+		speechScheduler.dismiss();
 	}
 	
 	@Override
 	public void dispose() {
-		if (balloonTimer.isRunning()) {
-			balloonTimer.stop();
-		}
+		speechScheduler.shutdown();
 		if (optionsDialog != null) {
 			optionsDialog.dispose();
 		}
 		if (balloonWindow != null) {
 			balloonWindow.dispose();
 		}
+		imageCache.shutdown();
 		super.dispose();
-		try {
-			properties.store(Files.newOutputStream(dataDirPath.resolve("config.properties")),
-					"MinaChan GUI configuration");
-		} catch (IOException e) {
-			e.printStackTrace();
-		}
+		config.close();
 	}
 	
-	void setPosition(Point pos) {
-		Rectangle screenBounds = GraphicsEnvironment.getLocalGraphicsEnvironment().getMaximumWindowBounds();
-		Rectangle frameBounds = new Rectangle(pos, getSize());
-		if (frameBounds.getMaxX() > screenBounds.getMaxX()) {
-			frameBounds.x = (int) screenBounds.getMaxX() - frameBounds.width;
+	/**
+	 * Moves the character inside the screen, the balloon is moved along with it.
+	 * Does not allocate, so it can be called for every frame of a drag.
+	 */
+	void setPosition(int x, int y) {
+		Rectangle screenBounds = getScreenBounds();
+		int width = getWidth();
+		int height = getHeight();
+		if (x + width > screenBounds.x + screenBounds.width) {
+			x = screenBounds.x + screenBounds.width - width;
 		}
-		if (frameBounds.getMaxY() > screenBounds.getMaxY()) {
-			frameBounds.y = (int)screenBounds.getMaxY() - frameBounds.height;
+		if (y + height > screenBounds.y + screenBounds.height) {
+			y = screenBounds.y + screenBounds.height - height;
 		}
-		frameBounds.x = Math.max(screenBounds.x, frameBounds.x);
-		frameBounds.y = Math.max(screenBounds.y, frameBounds.y);
-		setLocation(frameBounds.x, frameBounds.y);
-		if (balloonWindow != null) {
-			updateSizes();
+		x = Math.max(screenBounds.x, x);
+		y = Math.max(screenBounds.y, y);
+		setLocation(x, y);
+		if (balloonShown) {
+			int balloonX = x - balloonWindow.getWidth();
+			if (balloonX < 0) {
+				balloonX = x + width;
+			}
+			balloonWindow.setLocation(balloonX, y);
 		}
 	}
 	
+	SkinImageCache getImageCache() {
+		return imageCache;
+	}
+	
 	CharacterWidget getCharacterWidget() {
 		return characterWidget;
 	}
@@ -11,6 +11,7 @@ import java.awt.*;
 import java.awt.event.ActionEvent;
 import java.io.File;
 import java.nio.file.Path;
+import java.util.HashMap;
 import java.util.List;
 import java.util.Map;
 
@@ -40,13 +41,16 @@ class OptionsDialog extends JFrame {
 			mainWindow.balloonTextFont = chooser.getSelectedFont();
 			changeBalloonFontAction.putValue(Action.NAME, mainWindow.balloonTextFont.getName() + ", " +
 					String.valueOf(mainWindow.balloonTextFont.getSize()));
-			MainWindow.properties.setProperty("balloon.font.family", mainWindow.balloonTextFont.getFamily());
-			MainWindow.properties.setProperty("balloon.font.size",
-					String.valueOf(mainWindow.balloonTextFont.getSize()));
-			MainWindow.properties.setProperty("balloon.font.style",
-					String.valueOf(mainWindow.balloonTextFont.getStyle()));
+			Map<String, String> fontConfig = new HashMap<>();
+			fontConfig.put("balloon.font.family", mainWindow.balloonTextFont.getFamily());
+			fontConfig.put("balloon.font.size", String.valueOf(mainWindow.balloonTextFont.getSize()));
+			fontConfig.put("balloon.font.style", String.valueOf(mainWindow.balloonTextFont.getStyle()));
+			MainWindow.config.set(fontConfig);
 		}
 	};
+	private final JComboBox<String> characterScaleComboBox = new JComboBox<>(new String[] {
+			"50%", "75%", "100%", "125%", "150%", "200%"
+	});
 	private JList pluginsList;
 	private final Action loadPluginAction = new AbstractAction(MainWindow.getString("load")) {
 		@Override
@@ -101,13 +105,24 @@ class OptionsDialog extends JFrame {
 		setDefaultCloseOperation(JFrame.HIDE_ON_CLOSE);
 		setContentPane(tabbedPane);
 		JPanel appearanceTab = new JPanel(new BorderLayout());
-		JPanel panel = new JPanel(new GridLayout(3, 2));
+		JPanel panel = new JPanel(new GridLayout(4, 2));
 		panel.add(new JLabel(MainWindow.getString("look_and_feel")));
 		panel.add(new LookAndFeelComboBox());
 		panel.add(new JLabel(MainWindow.getString("skin")));
 		panel.add(new JButton(openSkinManagerAction));
 		panel.add(new JLabel(MainWindow.getString("balloon_font")));
 		panel.add(new JButton(changeBalloonFontAction));
+		panel.add(new JLabel(MainWindow.getString("character_scale")));
+		characterScaleComboBox.setEditable(true);
+		characterScaleComboBox.addActionListener(e -> {
+			String value = String.valueOf(characterScaleComboBox.getSelectedItem()).replace("%", "").trim();
+			try {
+				mainWindow.getCharacterWidget().setScale(Double.parseDouble(value) / 100);
+			} catch (NumberFormatException ex) {
+				// Некорректное значение: масштаб не меняется
+			}
+		});
+		panel.add(characterScaleComboBox);
 		appearanceTab.add(panel, BorderLayout.PAGE_START);
 		tabbedPane.addTab(MainWindow.getString("appearance"), appearanceTab);
 		JPanel pluginsTab = new JPanel(new BorderLayout());
@@ -157,6 +172,7 @@ class OptionsDialog extends JFrame {
 		openSkinManagerAction.putValue(Action.NAME, mainWindow.getCharacterWidget().getCurrentSkin().getName());
 		changeBalloonFontAction.putValue(Action.NAME, mainWindow.balloonTextFont.getName() + ", " +
 				String.valueOf(mainWindow.balloonTextFont.getSize()));
+		characterScaleComboBox.setSelectedItem(Math.round(mainWindow.getCharacterWidget().getScale() * 100) + "%");
 		mainWindow.getPluginProxy().sendMessage("core:query-alternatives-map", null, (sender, data) -> {
 			alternativesTreeRoot.removeAllChildren();
 			Map<String, Object> m = (Map<String, Object>) (((Map) data).get("map"));
@@ -3,11 +3,18 @@ package PluginGUI;
 import org.apache.commons.io.FilenameUtils;
 
 import javax.imageio.ImageIO;
-import java.awt.*;
+import javax.imageio.stream.MemoryCacheImageInputStream;
+import java.awt.image.BufferedImage;
 import java.io.IOException;
+import java.io.InputStream;
 import java.nio.file.Files;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Path;
 import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.Set;
 
 public class Skin implements Comparable<Skin> {
 	
@@ -18,6 +25,8 @@ public class Skin implements Comparable<Skin> {
 	private final Path basePath;
 	private final int type;
 	private final boolean builtin;
+	/* Файлы изображений набора по имени, строится один раз при первом обращении */
+	private volatile Map<String, Path> imageIndex = null;
 	
 	Skin(Path path, boolean builtin) {
 		this.builtin = builtin;
@@ -56,28 +65,106 @@ public class Skin implements Comparable<Skin> {
 		return type;
 	}
 	
-	Image getImage(String name) {
+	/**
+	 * Decodes the image synchronously. Widgets should use {@link SkinImageCache} instead.
+	 */
+	BufferedImage getImage(String name) {
+		Path imagePath = getImagePath(name);
+		if (imagePath != null) {
+			try {
+				return Files.isDirectory(imagePath) ? SkinImage.read(imagePath).getFrame(0) : readImage(imagePath);
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return null;
+	}
+	
+	/**
+	 * File (or directory of animation frames) of the image with the given name, "normal" if
+	 * the skin has no such image, or null if it has neither.
+	 */
+	Path getImagePath(String name) {
 		switch (type) {
 			case SINGLE_IMAGE:
-				try {
-					return ImageIO.read(Files.newInputStream(basePath));
-				} catch (IOException e) {
-					e.printStackTrace();
-				}
-				break;
+				return basePath;
 			case IMAGE_SET:
-				Path imagePath = basePath.resolve(name + ".png");
-				if (Files.isReadable(imagePath)) {
-					try {
-						return ImageIO.read(Files.newInputStream(imagePath));
-					} catch (Throwable e) {
-						e.printStackTrace();
+				return resolve(getImageIndex(), name);
+		}
+		return null;
+	}
+	
+	/**
+	 * File of the image if the image index has already been built, does not touch the disk.
+	 */
+	Path getKnownImagePath(String name) {
+		if (type == SINGLE_IMAGE) {
+			return basePath;
+		}
+		Map<String, Path> index = imageIndex;
+		return (index != null) ? resolve(index, name) : null;
+	}
+	
+	/**
+	 * Names of all images of the skin.
+	 */
+	Set<String> getImageNames() {
+		if (type == SINGLE_IMAGE) {
+			return Collections.singleton("normal");
+		}
+		return getImageIndex().keySet();
+	}
+	
+	private static Path resolve(Map<String, Path> index, String name) {
+		Path imagePath = index.get(name);
+		return (imagePath != null) ? imagePath : index.get("normal");
+	}
+	
+	private Map<String, Path> getImageIndex() {
+		Map<String, Path> index = imageIndex;
+		if (index == null) {
+			synchronized (this) {
+				index = imageIndex;
+				if (index == null) {
+					index = buildImageIndex();
+					imageIndex = index;
+				}
+			}
+		}
+		return index;
+	}
+	
+	private Map<String, Path> buildImageIndex() {
+		Map<String, Path> index = new HashMap<>();
+		if (type == IMAGE_SET) {
+			try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(basePath)) {
+				for (Path path : directoryStream) {
+					String fileName = path.getFileName().toString();
+					if (Files.isDirectory(path)) {
+						// Анимация важнее одиночного изображения с тем же именем
+						if (!SkinImage.listFrames(path).isEmpty()) {
+							index.put(fileName, path);
+						}
+					} else if (fileName.endsWith(".png") && Files.isReadable(path)) {
+						index.putIfAbsent(FilenameUtils.getBaseName(fileName), path);
 					}
-				} else if (!name.equals("normal")) {
-					return getImage("normal");
 				}
+			} catch (IOException e) {
+				e.printStackTrace();
+			}
+		}
+		return Collections.unmodifiableMap(index);
+	}
+	
+	static BufferedImage readImage(Path path) throws IOException {
+		// Поток в памяти: ImageIO.read(InputStream) кэширует поток во временном файле
+		try (InputStream stream = Files.newInputStream(path)) {
+			BufferedImage image = ImageIO.read(new MemoryCacheImageInputStream(stream));
+			if (image == null) {
+				throw new IOException("Unsupported image format: " + path);
+			}
+			return image;
 		}
-		return null;
 	}
 	
 	boolean isBuiltin() {
@@ -0,0 +1,90 @@
+package PluginGUI;
+
+import javax.swing.*;
+import java.awt.event.HierarchyEvent;
+import java.awt.event.HierarchyListener;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+
+/**
+ * Playback of skin animations for one component.
+ * All animators share a single scheduler thread. A tick only asks the event thread to show
+ * the next frame, and no new tick is queued while the previous frame is still waiting, so a
+ * busy event thread drops frames instead of falling behind. Playback stops while the
+ * component is not showing and the frame rate is capped by -Dminachan.animation.maxFps
+ * (15 by default).
+ */
+final class SkinAnimator implements HierarchyListener {
+
+	private static final int DEFAULT_MAX_FPS = 15;
+	private static final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "skin-animator");
+		thread.setDaemon(true);
+		return thread;
+	});
+
+	private final JComponent component;
+	private final Runnable nextFrame;
+	private final AtomicBoolean framePending = new AtomicBoolean(false);
+	/* Изменяются только в потоке событий */
+	private SkinImage image = null;
+	private ScheduledFuture<?> task = null;
+
+	/**
+	 * @param nextFrame shows the next frame, called on the event thread
+	 */
+	SkinAnimator(JComponent component, Runnable nextFrame) {
+		this.component = component;
+		this.nextFrame = nextFrame;
+		component.addHierarchyListener(this);
+	}
+
+	static int maxFps() {
+		return Math.max(1, Integer.getInteger("minachan.animation.maxFps", DEFAULT_MAX_FPS));
+	}
+
+	/**
+	 * Plays the image if it is animated, otherwise stops playback. Must be called on the event thread.
+	 */
+	void play(SkinImage image) {
+		this.image = image;
+		restart();
+	}
+
+	void stop() {
+		play(null);
+	}
+
+	private void restart() {
+		if (task != null) {
+			task.cancel(false);
+			task = null;
+		}
+		if (image != null && image.isAnimated() && component.isShowing()) {
+			long period = Math.max(image.getFrameDelay(), 1000 / maxFps());
+			task = scheduler.scheduleAtFixedRate(this::tick, period, period, TimeUnit.MILLISECONDS);
+		}
+	}
+
+	private void tick() {
+		if (framePending.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(() -> {
+				framePending.set(false);
+				if (task != null) {
+					nextFrame.run();
+				}
+			});
+		}
+	}
+
+	@Override
+	public void hierarchyChanged(HierarchyEvent e) {
+		if ((e.getChangeFlags() & HierarchyEvent.SHOWING_CHANGED) != 0) {
+			restart();
+		}
+	}
+
+}
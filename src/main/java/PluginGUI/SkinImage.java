@@ -0,0 +1,230 @@
+package PluginGUI;
+
+import org.apache.commons.io.FilenameUtils;
+
+import java.awt.*;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBuffer;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.DirectoryStream;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Comparator;
+import java.util.List;
+import java.util.Properties;
+
+/**
+ * Decoded image of a skin: a single picture or the frames of an animation.
+ * An animation is a directory of numbered frames (1.png, 2.png, ...) in an image set skin,
+ * the frame delay in milliseconds may be set by "delay" in animation.properties of the
+ * directory. Images are converted once to images compatible with the screen, so drawing
+ * them stays on the accelerated path. A scaled or flipped variant of the frames is rendered
+ * on first use and kept until another variant is requested.
+ */
+final class SkinImage {
+
+	static final int DEFAULT_FRAME_DELAY = 150;
+	static final String ANIMATION_PROPERTIES = "animation.properties";
+
+	private final BufferedImage[] frames;
+	private final int frameDelay;
+	private final int width;
+	private final int height;
+	private final long sizeBytes;
+	/* Последний запрошенный вариант кадров, используется только в потоке событий */
+	private Variant variant = null;
+
+	private SkinImage(BufferedImage[] frames, int frameDelay) {
+		this.frames = frames;
+		this.frameDelay = frameDelay;
+		int width = 0;
+		int height = 0;
+		long sizeBytes = 0;
+		for (BufferedImage frame : frames) {
+			width = Math.max(width, frame.getWidth());
+			height = Math.max(height, frame.getHeight());
+			sizeBytes += sizeOf(frame);
+		}
+		this.width = width;
+		this.height = height;
+		this.sizeBytes = sizeBytes;
+	}
+
+	static SkinImage read(Path path) throws IOException {
+		if (!Files.isDirectory(path)) {
+			return new SkinImage(new BufferedImage[] { toCompatible(Skin.readImage(path)) }, 0);
+		}
+		List<Path> framePaths = listFrames(path);
+		if (framePaths.isEmpty()) {
+			throw new IOException("No frames in " + path);
+		}
+		BufferedImage[] frames = new BufferedImage[framePaths.size()];
+		for (int i = 0; i < frames.length; ++i) {
+			frames[i] = toCompatible(Skin.readImage(framePaths.get(i)));
+		}
+		return new SkinImage(frames, readFrameDelay(path));
+	}
+
+	/**
+	 * Numbered frames of an animation directory in playback order.
+	 */
+	static List<Path> listFrames(Path dir) throws IOException {
+		List<Path> frames = new ArrayList<>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir, "*.png")) {
+			for (Path path : directoryStream) {
+				if (frameNumber(path) >= 0 && Files.isReadable(path)) {
+					frames.add(path);
+				}
+			}
+		}
+		frames.sort(Comparator.comparingInt(SkinImage::frameNumber));
+		return frames;
+	}
+
+	private static int frameNumber(Path path) {
+		try {
+			return Integer.parseInt(FilenameUtils.getBaseName(path.getFileName().toString()));
+		} catch (NumberFormatException e) {
+			return -1;
+		}
+	}
+
+	private static int readFrameDelay(Path dir) {
+		Path file = dir.resolve(ANIMATION_PROPERTIES);
+		if (Files.isReadable(file)) {
+			Properties properties = new Properties();
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				properties.load(reader);
+				return Math.max(1, Integer.parseInt(properties.getProperty("delay", "").trim()));
+			} catch (IOException | NumberFormatException e) {
+				// Задержка по умолчанию
+			}
+		}
+		return DEFAULT_FRAME_DELAY;
+	}
+
+	/**
+	 * Copy of the image in the pixel format of the default screen (premultiplied ARGB without
+	 * a screen), or the image itself if it already has that format.
+	 */
+	static BufferedImage toCompatible(BufferedImage image) {
+		BufferedImage compatible;
+		if (GraphicsEnvironment.isHeadless()) {
+			if (image.getType() == BufferedImage.TYPE_INT_ARGB_PRE) {
+				return image;
+			}
+			compatible = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_ARGB_PRE);
+		} else {
+			GraphicsConfiguration configuration = GraphicsEnvironment.getLocalGraphicsEnvironment()
+					.getDefaultScreenDevice().getDefaultConfiguration();
+			int transparency = image.getTransparency();
+			if (image.getColorModel().equals(configuration.getColorModel(transparency))) {
+				return image;
+			}
+			compatible = configuration.createCompatibleImage(image.getWidth(), image.getHeight(), transparency);
+		}
+		Graphics2D g = compatible.createGraphics();
+		g.setComposite(AlphaComposite.Src);
+		g.drawImage(image, 0, 0, null);
+		g.dispose();
+		return compatible;
+	}
+
+	/**
+	 * Frame scaled by the factor and mirrored horizontally if flip is set. Variants are rendered
+	 * once with bicubic interpolation. Must be called on the event thread.
+	 */
+	BufferedImage getFrame(int index, double scale, boolean flip) {
+		if (Math.abs(scale - 1.0) < 0.001 && !flip) {
+			return frames[index];
+		}
+		Variant variant = this.variant;
+		if (variant == null || variant.scale != scale || variant.flip != flip) {
+			variant = new Variant(scale, flip, frames.length);
+			this.variant = variant;
+		}
+		BufferedImage frame = variant.frames[index];
+		if (frame == null) {
+			frame = render(frames[index], scale, flip);
+			variant.frames[index] = frame;
+		}
+		return frame;
+	}
+
+	private static BufferedImage render(BufferedImage image, double scale, boolean flip) {
+		int width = Math.max(1, (int) Math.round(image.getWidth() * scale));
+		int height = Math.max(1, (int) Math.round(image.getHeight() * scale));
+		BufferedImage result;
+		if (GraphicsEnvironment.isHeadless()) {
+			result = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB_PRE);
+		} else {
+			result = GraphicsEnvironment.getLocalGraphicsEnvironment().getDefaultScreenDevice()
+					.getDefaultConfiguration().createCompatibleImage(width, height, image.getTransparency());
+		}
+		Graphics2D g = result.createGraphics();
+		g.setComposite(AlphaComposite.Src);
+		g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+		g.setRenderingHint(RenderingHints.KEY_RENDERING, RenderingHints.VALUE_RENDER_QUALITY);
+		if (flip) {
+			g.drawImage(image, width, 0, 0, height, 0, 0, image.getWidth(), image.getHeight(), null);
+		} else {
+			g.drawImage(image, 0, 0, width, height, null);
+		}
+		g.dispose();
+		return result;
+	}
+
+	private static long sizeOf(BufferedImage image) {
+		DataBuffer dataBuffer = image.getRaster().getDataBuffer();
+		return (long) dataBuffer.getSize() * dataBuffer.getNumBanks() * DataBuffer.getDataTypeSize(dataBuffer.getDataType()) / 8;
+	}
+
+	BufferedImage getFrame(int index) {
+		return frames[index];
+	}
+
+	int getFrameCount() {
+		return frames.length;
+	}
+
+	boolean isAnimated() {
+		return frames.length > 1;
+	}
+
+	/**
+	 * Delay between frames in milliseconds, 0 for a single picture.
+	 */
+	int getFrameDelay() {
+		return frameDelay;
+	}
+
+	int getWidth() {
+		return width;
+	}
+
+	int getHeight() {
+		return height;
+	}
+
+	long getSizeBytes() {
+		return sizeBytes;
+	}
+
+	private static final class Variant {
+
+		final double scale;
+		final boolean flip;
+		final BufferedImage[] frames;
+
+		Variant(double scale, boolean flip, int frameCount) {
+			this.scale = scale;
+			this.flip = flip;
+			this.frames = new BufferedImage[frameCount];
+		}
+
+	}
+
+}
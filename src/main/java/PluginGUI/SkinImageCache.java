@@ -0,0 +1,209 @@
+package PluginGUI;
+
+import PluginSystem.LatencyHistogram;
+
+import java.io.IOException;
+import java.io.UncheckedIOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.LongAdder;
+
+/**
+ * Decoded skin images and animations. Images are decoded on a small background pool and kept in an LRU
+ * bounded by the total size of their pixel data, so switching emotions does not touch the
+ * disk or block the event thread. Concurrent requests for the same file share one decode.
+ * The bound is set with -Dminachan.skin.cache.size (bytes, 64 MB by default).
+ *
+ * After a skin is shown, its other images are prefetched one at a time, the most often
+ * requested names first, until the cache is full.
+ */
+final class SkinImageCache {
+
+	private static final long DEFAULT_MAX_BYTES = 64L * 1024 * 1024;
+
+	private final long maxBytes;
+	private final ExecutorService decoder;
+	private final LinkedHashMap<Path, SkinImage> images = new LinkedHashMap<>(16, 0.75f, true);
+	private final Map<Path, CompletableFuture<SkinImage>> pending = new HashMap<>();
+	private long sizeBytes = 0;
+	private final LongAdder hits = new LongAdder();
+	private final LongAdder misses = new LongAdder();
+	private final LongAdder evictions = new LongAdder();
+	private final LatencyHistogram decodeLatency = new LatencyHistogram();
+	/* Сколько раз запрашивалось изображение с таким именем, для порядка предзагрузки */
+	private final Map<String, LongAdder> requestCounts = new ConcurrentHashMap<>();
+	private final AtomicInteger prefetchGeneration = new AtomicInteger();
+	private final LongAdder prefetched = new LongAdder();
+
+	SkinImageCache(long maxBytes) {
+		this.maxBytes = maxBytes;
+		AtomicInteger threadCount = new AtomicInteger();
+		this.decoder = Executors.newFixedThreadPool(Math.min(2, Runtime.getRuntime().availableProcessors()), runnable -> {
+			Thread thread = new Thread(runnable, "skin-decoder-" + threadCount.incrementAndGet());
+			thread.setDaemon(true);
+			thread.setPriority(Thread.NORM_PRIORITY - 1);
+			return thread;
+		});
+	}
+
+	static long defaultMaxBytes() {
+		return Long.getLong("minachan.skin.cache.size", DEFAULT_MAX_BYTES);
+	}
+
+	/**
+	 * Image of the skin with the given name. The future is already completed if the image is
+	 * cached, otherwise it completes on a decoder thread (with null if the skin has no image).
+	 */
+	CompletableFuture<SkinImage> load(Skin skin, String name) {
+		requestCounts.computeIfAbsent(name, k -> new LongAdder()).increment();
+		Path path = skin.getKnownImagePath(name);
+		if (path != null) {
+			return load(path);
+		}
+		// Поиск файла тоже обращается к диску
+		return CompletableFuture.supplyAsync(() -> skin.getImagePath(name), decoder)
+				.thenCompose(imagePath -> (imagePath != null) ? load(imagePath) : CompletableFuture.completedFuture(null));
+	}
+
+	synchronized CompletableFuture<SkinImage> load(Path path) {
+		SkinImage image = images.get(path);
+		if (image != null) {
+			hits.increment();
+			return CompletableFuture.completedFuture(image);
+		}
+		misses.increment();
+		return decodeAsync(path);
+	}
+
+	private synchronized CompletableFuture<SkinImage> decodeAsync(Path path) {
+		CompletableFuture<SkinImage> future = pending.get(path);
+		if (future == null) {
+			future = CompletableFuture.supplyAsync(() -> decode(path), decoder);
+			pending.put(path, future);
+			future.whenComplete((decoded, e) -> put(path, decoded));
+		}
+		return future;
+	}
+
+	/**
+	 * Starts decoding the other images of the skin in the background, most requested first.
+	 * Only one prefetched image is decoded at a time, so requests for images that are needed
+	 * now wait for at most one decode. A new prefetch stops the previous one.
+	 */
+	void prefetch(Skin skin) {
+		int generation = prefetchGeneration.incrementAndGet();
+		CompletableFuture.supplyAsync(() -> byFrequency(skin.getImageNames()), decoder)
+				.thenAccept(names -> prefetchNext(skin, names.iterator(), generation));
+	}
+
+	private List<String> byFrequency(Collection<String> names) {
+		List<String> result = new ArrayList<>(names);
+		Map<String, Long> counts = new HashMap<>();
+		for (String name : result) {
+			LongAdder count = requestCounts.get(name);
+			counts.put(name, (count != null) ? count.sum() : 0L);
+		}
+		result.sort(Comparator.comparing((String name) -> counts.get(name)).reversed()
+				.thenComparing(Comparator.naturalOrder()));
+		return result;
+	}
+
+	private void prefetchNext(Skin skin, Iterator<String> names, int generation) {
+		while (names.hasNext() && generation == prefetchGeneration.get()) {
+			Path path = skin.getImagePath(names.next());
+			CompletableFuture<SkinImage> future;
+			synchronized (this) {
+				// Предзагрузка не вытесняет уже загруженные изображения
+				if (sizeBytes >= maxBytes) {
+					return;
+				}
+				if (path == null || images.containsKey(path)) {
+					continue;
+				}
+				future = decodeAsync(path);
+			}
+			prefetched.increment();
+			future.whenComplete((image, e) -> prefetchNext(skin, names, generation));
+			return;
+		}
+	}
+
+	private SkinImage decode(Path path) {
+		long start = System.nanoTime();
+		try {
+			return SkinImage.read(path);
+		} catch (IOException e) {
+			throw new UncheckedIOException(e);
+		} finally {
+			decodeLatency.record(System.nanoTime() - start);
+		}
+	}
+
+	private synchronized void put(Path path, SkinImage image) {
+		pending.remove(path);
+		if (image == null) {
+			return;
+		}
+		long size = image.getSizeBytes();
+		if (size > maxBytes) {
+			return;
+		}
+		SkinImage previous = images.put(path, image);
+		if (previous != null) {
+			sizeBytes -= previous.getSizeBytes();
+		}
+		sizeBytes += size;
+		Iterator<SkinImage> iterator = images.values().iterator();
+		while (sizeBytes > maxBytes && iterator.hasNext()) {
+			SkinImage eldest = iterator.next();
+			if (eldest == image) {
+				continue;
+			}
+			iterator.remove();
+			sizeBytes -= eldest.getSizeBytes();
+			evictions.increment();
+		}
+	}
+
+	synchronized void clear() {
+		images.clear();
+		sizeBytes = 0;
+	}
+
+	void shutdown() {
+		prefetchGeneration.incrementAndGet();
+		decoder.shutdownNow();
+		clear();
+	}
+
+	/**
+	 * Hit rate, size and decode latency of the cache.
+	 */
+	Map<String, Object> getStatistics() {
+		Map<String, Object> m = new HashMap<>();
+		long hitCount = hits.sum();
+		long missCount = misses.sum();
+		m.put("hits", hitCount);
+		m.put("misses", missCount);
+		m.put("hitRate", (hitCount + missCount > 0) ? (double) hitCount / (hitCount + missCount) : 0.0);
+		m.put("evictions", evictions.sum());
+		m.put("prefetched", prefetched.sum());
+		synchronized (this) {
+			m.put("images", images.size());
+			m.put("sizeBytes", sizeBytes);
+		}
+		m.put("maxSizeBytes", maxBytes);
+		m.put("decodes", decodeLatency.getCount());
+		m.put("decodeMeanMicros", decodeLatency.getMean() / 1000);
+		m.put("decodeP50Micros", decodeLatency.getValueAtPercentile(50) / 1000);
+		m.put("decodeP99Micros", decodeLatency.getValueAtPercentile(99) / 1000);
+		m.put("decodeMaxMicros", decodeLatency.getMax() / 1000);
+		return m;
+	}
+
+}
@@ -31,7 +31,6 @@ public class SkinManagerDialog extends JDialog {
 			if (selectedValue != null) {
 				Skin skin = (Skin) selectedValue;
 				mainWindow.getCharacterWidget().setSkin(skin);
-				mainWindow.setDefaultLocation();
 			}
 		}
 	};
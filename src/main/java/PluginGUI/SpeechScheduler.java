@@ -0,0 +1,303 @@
+package PluginGUI;
+
+import javax.swing.*;
+import java.util.*;
+import java.util.concurrent.Executors;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.Consumer;
+
+/**
+ * Order in which phrases of plugins are shown in the balloon.
+ * Phrases wait in a queue ordered by priority, a phrase that is already waiting or shown is
+ * not queued again, and every plugin may say at most -Dminachan.speech.burst phrases at once
+ * (3 by default) and -Dminachan.speech.rate phrases per second after that (1 by default),
+ * the rest is dropped. A shown phrase is replaced by a waiting one of the same or higher
+ * priority only after -Dminachan.speech.minDisplay milliseconds (1500 by default), a less
+ * important phrase waits until the shown one is hidden. A phrase without a timeout is kept
+ * only until the next one, so after the same time any waiting phrase replaces it.
+ * Phrases said after {@link #shutdown} are ignored.
+ * All decisions are made on one scheduler thread, the event thread only gets the text that
+ * should be visible, and no more than one update waits there at a time.
+ */
+final class SpeechScheduler {
+
+	private static final int DEFAULT_BURST = 3;
+	private static final double DEFAULT_RATE = 1.0;
+	private static final long DEFAULT_MIN_DISPLAY = 1500;
+	private static final int MAX_PENDING = 32;
+
+	private final ScheduledExecutorService scheduler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "speech-scheduler");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private final Consumer<String> display;
+	private final int burst;
+	private final double rate;
+	private final long minDisplayNanos;
+
+	/* Состояние ниже меняется только в потоке планировщика */
+	private final PriorityQueue<Utterance> queue = new PriorityQueue<>();
+	private final Map<String, Utterance> pendingByText = new HashMap<>();
+	private final Map<String, Bucket> buckets = new HashMap<>();
+	private Utterance current = null;
+	private long shownAt = 0;
+	private long hideAt = 0;
+	private long sequence = 0;
+	private ScheduledFuture<?> wakeup = null;
+	private long wakeupAt = 0;
+
+	private volatile String visibleText = null;
+	private final AtomicBoolean updatePending = new AtomicBoolean(false);
+
+	private final LongAdder submitted = new LongAdder();
+	private final LongAdder shown = new LongAdder();
+	private final LongAdder rateLimited = new LongAdder();
+	private final LongAdder deduplicated = new LongAdder();
+	private final LongAdder overflowed = new LongAdder();
+	private final LongAdder preempted = new LongAdder();
+	private final LongAdder eventThreadUpdates = new LongAdder();
+
+	/**
+	 * @param display shows the text in the balloon or hides it if the text is null, called on the event thread
+	 */
+	SpeechScheduler(Consumer<String> display) {
+		this(display, Integer.getInteger("minachan.speech.burst", DEFAULT_BURST), readRate(),
+				Long.getLong("minachan.speech.minDisplay", DEFAULT_MIN_DISPLAY));
+	}
+
+	/**
+	 * @param burst phrases a plugin may say at once
+	 * @param rate phrases per second a plugin may say after the burst
+	 * @param minDisplay milliseconds a phrase stays visible before it may be replaced
+	 */
+	SpeechScheduler(Consumer<String> display, int burst, double rate, long minDisplay) {
+		this.display = display;
+		this.burst = Math.max(1, burst);
+		this.rate = Math.max(0.01, rate);
+		this.minDisplayNanos = TimeUnit.MILLISECONDS.toNanos(Math.max(0, minDisplay));
+	}
+
+	private static double readRate() {
+		try {
+			return Double.parseDouble(System.getProperty("minachan.speech.rate", ""));
+		} catch (NumberFormatException e) {
+			return DEFAULT_RATE;
+		}
+	}
+
+	/**
+	 * Queues a phrase of the plugin.
+	 *
+	 * @param timeout milliseconds the phrase stays visible, 0 or less to keep it until the next one
+	 */
+	void say(String sender, String text, int timeout, int priority) {
+		long now = System.nanoTime();
+		if (execute(() -> enqueue(new Utterance(sender, text, timeout, priority, now)))) {
+			submitted.increment();
+		}
+	}
+
+	/**
+	 * Hides the shown phrase, the next waiting one is shown right away.
+	 */
+	void dismiss() {
+		execute(() -> {
+			if (current != null) {
+				current = null;
+				post(null);
+			}
+			update();
+		});
+	}
+
+	void shutdown() {
+		scheduler.shutdownNow();
+	}
+
+	private boolean execute(Runnable task) {
+		if (scheduler.isShutdown()) {
+			return false;
+		}
+		try {
+			scheduler.execute(task);
+			return true;
+		} catch (RejectedExecutionException e) {
+			// Планировщик остановлен между проверкой и вызовом
+			return false;
+		}
+	}
+
+	private void enqueue(Utterance utterance) {
+		if (current != null && current.text.equals(utterance.text)) {
+			// Та же фраза уже на экране - продлеваем её показ
+			hideAt = (utterance.timeout > 0) ? System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(utterance.timeout) : 0;
+			deduplicated.increment();
+			update();
+			return;
+		}
+		Utterance waiting = pendingByText.get(utterance.text);
+		if (waiting != null) {
+			deduplicated.increment();
+			if (utterance.priority <= waiting.priority) {
+				return;
+			}
+			queue.remove(waiting);
+			pendingByText.remove(waiting.text);
+		} else if (!takeToken(utterance.sender, utterance.submittedAt)) {
+			rateLimited.increment();
+			return;
+		}
+		utterance.sequence = sequence++;
+		queue.add(utterance);
+		pendingByText.put(utterance.text, utterance);
+		if (queue.size() > MAX_PENDING) {
+			Utterance last = Collections.max(queue);
+			queue.remove(last);
+			pendingByText.remove(last.text);
+			overflowed.increment();
+		}
+		update();
+	}
+
+	private boolean takeToken(String sender, long now) {
+		Bucket bucket = buckets.get(sender);
+		if (bucket == null) {
+			bucket = new Bucket(burst, now);
+			buckets.put(sender, bucket);
+		}
+		bucket.tokens = Math.min(burst, bucket.tokens + (now - bucket.updatedAt) * rate / TimeUnit.SECONDS.toNanos(1));
+		bucket.updatedAt = now;
+		if (bucket.tokens < 1) {
+			return false;
+		}
+		bucket.tokens -= 1;
+		return true;
+	}
+
+	/**
+	 * Hides an expired phrase, shows the next one if nothing is shown or the current one was
+	 * visible long enough and is not more important, and plans the next check.
+	 */
+	private void update() {
+		long now = System.nanoTime();
+		if (current != null && hideAt != 0 && now - hideAt >= 0) {
+			current = null;
+			if (queue.isEmpty()) {
+				post(null);
+			}
+		}
+		if (!queue.isEmpty() && (current == null || (canPreempt() && now - shownAt >= minDisplayNanos))) {
+			if (current != null) {
+				preempted.increment();
+			}
+			current = queue.poll();
+			pendingByText.remove(current.text);
+			shownAt = now;
+			hideAt = (current.timeout > 0) ? now + TimeUnit.MILLISECONDS.toNanos(current.timeout) : 0;
+			shown.increment();
+			post(current.text);
+		}
+		long next = 0;
+		if (current != null) {
+			if (canPreempt()) {
+				next = shownAt + minDisplayNanos;
+			}
+			if (hideAt != 0 && (next == 0 || hideAt - next < 0)) {
+				next = hideAt;
+			}
+		}
+		schedule(next, now);
+	}
+
+	/* Менее важная фраза ждёт, пока текущая не скроется; фраза без таймаута ждёт только следующую */
+	private boolean canPreempt() {
+		return !queue.isEmpty() && (current.timeout <= 0 || queue.peek().priority >= current.priority);
+	}
+
+	private void schedule(long at, long now) {
+		if (wakeup != null && !wakeup.isDone() && wakeupAt == at) {
+			return;
+		}
+		if (wakeup != null) {
+			wakeup.cancel(false);
+			wakeup = null;
+		}
+		if (at != 0) {
+			wakeupAt = at;
+			wakeup = scheduler.schedule(this::update, Math.max(0, at - now), TimeUnit.NANOSECONDS);
+		}
+	}
+
+	private void post(String text) {
+		visibleText = text;
+		if (updatePending.compareAndSet(false, true)) {
+			SwingUtilities.invokeLater(() -> {
+				updatePending.set(false);
+				eventThreadUpdates.increment();
+				display.accept(visibleText);
+			});
+		}
+	}
+
+	/**
+	 * Counts of submitted, shown and dropped phrases and of updates sent to the event thread.
+	 */
+	Map<String, Object> getStatistics() {
+		Map<String, Object> m = new HashMap<>();
+		m.put("submitted", submitted.sum());
+		m.put("shown", shown.sum());
+		m.put("rateLimited", rateLimited.sum());
+		m.put("deduplicated", deduplicated.sum());
+		m.put("overflowed", overflowed.sum());
+		m.put("preempted", preempted.sum());
+		m.put("eventThreadUpdates", eventThreadUpdates.sum());
+		return m;
+	}
+
+	private static final class Utterance implements Comparable<Utterance> {
+
+		final String sender;
+		final String text;
+		final int timeout;
+		final int priority;
+		final long submittedAt;
+		long sequence;
+
+		Utterance(String sender, String text, int timeout, int priority, long submittedAt) {
+			this.sender = sender;
+			this.text = text;
+			this.timeout = timeout;
+			this.priority = priority;
+			this.submittedAt = submittedAt;
+		}
+
+		/* Сначала более важные, среди равных - более ранние */
+		@Override
+		public int compareTo(Utterance o) {
+			if (priority != o.priority) {
+				return Integer.compare(o.priority, priority);
+			}
+			return Long.compare(sequence, o.sequence);
+		}
+
+	}
+
+	private static final class Bucket {
+
+		double tokens;
+		long updatedAt;
+
+		Bucket(double tokens, long updatedAt) {
+			this.tokens = tokens;
+			this.updatedAt = updatedAt;
+		}
+
+	}
+
+}
@@ -0,0 +1,198 @@
+package PluginGroovySupport;
+
+import groovy.lang.GroovyClassLoader;
+import groovy.lang.Script;
+import org.codehaus.groovy.ast.ClassNode;
+import org.codehaus.groovy.control.ClassNodeResolver;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.runtime.InvokerHelper;
+
+import java.lang.management.ManagementFactory;
+import java.lang.management.MemoryPoolMXBean;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Class loading of Groovy plugins.
+ * All plugins share one parent GroovyClassLoader and a cache of resolved ClassNodes, so classes
+ * used by many plugins (commons-io, org.json, the plugin API) are looked up and turned
+ * into ClassNodes once per application instead of once per plugin. Every plugin gets its
+ * own child {@link PluginClassLoader}, which is dropped together with the metaclasses of
+ * its classes when the plugin is unloaded.
+ */
+public class GroovyClassLoaders {
+
+    private final GroovyClassLoader sharedLoader = new GroovyClassLoader(GroovyPlugin.class.getClassLoader());
+    /* ClassNode классов, видимых общему загрузчику, общие для всех плагинов */
+    private final Map<String, ClassNode> sharedClassNodes = new ConcurrentHashMap<>();
+    /* Загрузчики версий плагина, последняя - текущая (старые живут до конца перезагрузки) */
+    private final Map<String, List<PluginClassLoader>> pluginLoaders = new ConcurrentHashMap<>();
+    private final MemoryPoolMXBean metaspace = findMetaspace();
+
+    /**
+     * Compilation unit for one plugin: the plugin's classpath is seen only by its own
+     * compiler loader, resolution of shared classes goes through the shared resolver.
+     */
+    CompilationUnit createCompilationUnit(CompilerConfiguration configuration) {
+        GroovyClassLoader compilerLoader = new GroovyClassLoader(sharedLoader, configuration);
+        CompilationUnit compilationUnit = new CompilationUnit(configuration, null, compilerLoader);
+        compilationUnit.setClassNodeResolver(new PluginClassNodeResolver());
+        return compilationUnit;
+    }
+
+    /**
+     * Defines compiled classes of a plugin in a new child loader and returns its script class.
+     */
+    Class<? extends Script> define(String pluginId, String mainClass, Map<String, byte[]> classes)
+            throws ClassNotFoundException {
+        long metaspaceBefore = getMetaspaceUsed();
+        PluginClassLoader loader = new PluginClassLoader(pluginId, sharedLoader, classes);
+        // Классы определяются сразу, чтобы посчитать их и прирост metaspace
+        for (String name : classes.keySet()) {
+            loader.loadClass(name);
+        }
+        loader.metaspaceBytes = Math.max(0, getMetaspaceUsed() - metaspaceBefore);
+        Class<?> cls = loader.loadClass(mainClass);
+        if (!Script.class.isAssignableFrom(cls)) {
+            throw new ClassNotFoundException(mainClass + " is not a script");
+        }
+        pluginLoaders.computeIfAbsent(pluginId, k -> new CopyOnWriteArrayList<>()).add(loader);
+        return cls.asSubclass(Script.class);
+    }
+
+    /**
+     * Forgets the loader of an unloaded plugin and the metaclasses of its classes.
+     */
+    void release(String pluginId) {
+        List<PluginClassLoader> loaders = pluginLoaders.remove(pluginId);
+        if (loaders != null) {
+            for (PluginClassLoader loader : loaders) {
+                loader.release();
+            }
+        }
+    }
+
+    /**
+     * Forgets loaders of the previous versions of a reloaded plugin.
+     */
+    void releasePreviousVersions(String pluginId) {
+        List<PluginClassLoader> loaders = pluginLoaders.get(pluginId);
+        if (loaders != null) {
+            while (loaders.size() > 1) {
+                loaders.remove(0).release();
+            }
+        }
+    }
+
+    /**
+     * Loaded classes, bytecode size and metaspace growth per plugin. Metaspace growth is
+     * approximate when plugins are compiled in parallel.
+     */
+    Map<String, Object> getStatistics() {
+        Map<String, Object> m = new TreeMap<>();
+        for (List<PluginClassLoader> loaders : pluginLoaders.values()) {
+            if (loaders.isEmpty()) {
+                continue;
+            }
+            PluginClassLoader loader = loaders.get(loaders.size() - 1);
+            Map<String, Object> stats = new HashMap<>();
+            stats.put("classes", loader.classCount);
+            stats.put("bytecodeBytes", loader.bytecodeBytes);
+            stats.put("metaspaceBytes", loader.metaspaceBytes);
+            m.put(loader.pluginId, stats);
+        }
+        return m;
+    }
+
+    private long getMetaspaceUsed() {
+        return (metaspace != null) ? metaspace.getUsage().getUsed() : 0;
+    }
+
+    private static MemoryPoolMXBean findMetaspace() {
+        for (MemoryPoolMXBean pool : ManagementFactory.getMemoryPoolMXBeans()) {
+            if (pool.getName().equals("Metaspace")) {
+                return pool;
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Class loader of one plugin, defines the compiled classes of the plugin.
+     */
+    static class PluginClassLoader extends ClassLoader {
+
+        private final String pluginId;
+        private final Map<String, byte[]> classes;
+        private final List<Class<?>> definedClasses = new ArrayList<>();
+        private final int classCount;
+        private final long bytecodeBytes;
+        private volatile long metaspaceBytes = 0;
+
+        PluginClassLoader(String pluginId, ClassLoader parent, Map<String, byte[]> classes) {
+            super(parent);
+            this.pluginId = pluginId;
+            this.classes = new HashMap<>(classes);
+            long size = 0;
+            for (byte[] bytes : classes.values()) {
+                size += bytes.length;
+            }
+            this.classCount = classes.size();
+            this.bytecodeBytes = size;
+        }
+
+        @Override
+        protected Class<?> findClass(String name) throws ClassNotFoundException {
+            byte[] bytes;
+            synchronized (this) {
+                bytes = classes.remove(name);
+            }
+            if (bytes == null) {
+                throw new ClassNotFoundException(name);
+            }
+            Class<?> cls = defineClass(name, bytes, 0, bytes.length);
+            synchronized (this) {
+                definedClasses.add(cls);
+            }
+            return cls;
+        }
+
+        synchronized void release() {
+            for (Class<?> cls : definedClasses) {
+                InvokerHelper.removeClass(cls);
+            }
+            definedClasses.clear();
+            classes.clear();
+        }
+
+    }
+
+    /**
+     * Resolver of one compilation unit. Classes visible to the shared loader are cached for
+     * all plugins, failed lookups and classes found on the plugin's own classpath only for
+     * this unit, so they never leak into the compilation of another plugin.
+     */
+    private final class PluginClassNodeResolver extends ClassNodeResolver {
+
+        private final Map<String, ClassNode> localClassNodes = new HashMap<>();
+
+        @Override
+        public ClassNode getFromClassCache(String name) {
+            ClassNode res = sharedClassNodes.get(name);
+            return (res != null) ? res : localClassNodes.get(name);
+        }
+
+        @Override
+        public void cacheClass(String name, ClassNode res) {
+            if (res != NO_CLASS && sharedLoader.getResource(name.replace('.', '/') + ".class") != null) {
+                sharedClassNodes.put(name, res);
+            } else {
+                localClassNodes.put(name, res);
+            }
+        }
+
+    }
+
+}
@@ -1,5 +1,7 @@
 package PluginGroovySupport;
 
+import PluginSystem.BatchMessageListener;
+import PluginSystem.Mailbox;
 import PluginSystem.MessageListener;
 import PluginSystem.Plugin;
 import PluginSystem.PluginProxy;
@@ -7,12 +9,13 @@ import PluginSystem.ResponseListener;
 import groovy.lang.Script;
 
 import java.nio.file.Path;
-import java.util.ArrayList;
 import java.util.List;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 public abstract class GroovyPlugin extends Script implements Plugin {
     private PluginProxy pluginProxy = null;
-    private final List<Runnable> cleanupHandlers = new ArrayList<>();
+    private final List<Runnable> cleanupHandlers = new CopyOnWriteArrayList<>();
     @Override
     public boolean initialize(PluginProxy pluginProxy) {
         this.pluginProxy = pluginProxy;
@@ -36,12 +39,24 @@ public abstract class GroovyPlugin extends Script implements Plugin {
     protected void sendMessage(String tag, Object data, ResponseListener responseListener) {
         pluginProxy.sendMessage(tag, data, responseListener);
     }
+    protected void sendBatch(String tag, List<Object> batch) {
+        pluginProxy.sendBatch(tag, batch);
+    }
+    protected CompletableFuture<Object> request(String tag, Object data, long timeoutMillis) {
+        return pluginProxy.request(tag, data, timeoutMillis);
+    }
     protected void addMessageListener(String tag, MessageListener listener) {
         pluginProxy.addMessageListener(tag, listener);
     }
+    protected void addBatchMessageListener(String tag, BatchMessageListener listener) {
+        pluginProxy.addMessageListener(tag, listener);
+    }
     protected void removeMessageListener(String tag, MessageListener listener) {
         pluginProxy.removeMessageListener(tag, listener);
     }
+    protected Mailbox enableAsyncDelivery(int capacity, Mailbox.OverflowPolicy policy) {
+        return pluginProxy.enableAsyncDelivery(capacity, policy);
+    }
     protected void addCleanupHandler(Runnable handler) {
         cleanupHandlers.add(handler);
     }
@@ -0,0 +1,307 @@
+package PluginGroovySupport;
+
+import groovy.lang.GroovySystem;
+import groovy.lang.Script;
+import org.codehaus.groovy.control.CompilationUnit;
+import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.Phases;
+import org.codehaus.groovy.tools.GroovyClass;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.*;
+import java.nio.file.attribute.FileTime;
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.*;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.stream.Stream;
+
+/**
+ * On-disk cache of compiled plugin scripts.
+ * An entry is a directory named by the SHA-256 of the script, every source, class and jar
+ * under the classpath it is compiled with, the compiler options, the Groovy version and the application classes the scripts are
+ * compiled against, with the generated .class files in it.
+ * Unchanged plugins are defined from these files by their own class loader (see
+ * {@link GroovyClassLoaders}) without running the compiler. Entries are evicted least
+ * recently used first when the total size exceeds the limit (-Dminachan.groovy.cache.size,
+ * bytes).
+ */
+public class GroovyScriptCache {
+
+    private static final String MAIN_CLASS_FILE = "main-class";
+    private static final long DEFAULT_MAX_SIZE = 64L * 1024 * 1024;
+    /* Файлы каталогов classpath, которые могут попасть в скомпилированный код */
+    private static final String[] CLASSPATH_EXTENSIONS = {".groovy", ".java", ".class", ".jar"};
+    /* Классы и ресурсы приложения, от которых зависит код скомпилированных скриптов */
+    private static final String[] APP_RESOURCES = {
+            "PluginGroovySupport/GroovyPlugin.class",
+            "PluginSystem/PluginProxy.class",
+            PluginClass.TYPE_CHECKING_EXTENSION
+    };
+    private static volatile byte[] appFingerprint = null;
+
+    private final Path cacheDir;
+    private final GroovyClassLoaders classLoaders;
+    private final long maxSize;
+    private final AtomicLong hits = new AtomicLong();
+    private final AtomicLong misses = new AtomicLong();
+    private final AtomicLong evictions = new AtomicLong();
+
+    public GroovyScriptCache(Path cacheDir, GroovyClassLoaders classLoaders) {
+        this(cacheDir, classLoaders, Long.getLong("minachan.groovy.cache.size", DEFAULT_MAX_SIZE));
+    }
+
+    public GroovyScriptCache(Path cacheDir, GroovyClassLoaders classLoaders, long maxSize) {
+        this.cacheDir = cacheDir;
+        this.classLoaders = classLoaders;
+        this.maxSize = maxSize;
+    }
+
+    /**
+     * Returns the script class of the plugin, compiling it only if the cache has no entry
+     * for the current sources. Options are additional compiler settings that change the
+     * generated code and must be part of the key.
+     */
+    public Class<? extends Script> loadScriptClass(String pluginId, Path script, CompilerConfiguration configuration,
+                                                  String options) throws IOException {
+        String key = key(script, configuration, options);
+        Path entry = cacheDir.resolve(key);
+        if (Files.isDirectory(entry)) {
+            try {
+                Class<? extends Script> cls = define(pluginId, entry);
+                Files.setLastModifiedTime(entry, FileTime.fromMillis(System.currentTimeMillis()));
+                hits.incrementAndGet();
+                return cls;
+            } catch (IOException | ClassNotFoundException | LinkageError e) {
+                // Повреждённая запись: компилируем заново
+                deleteEntry(entry);
+            }
+        }
+        misses.incrementAndGet();
+        Map<String, byte[]> classes = new LinkedHashMap<>();
+        String mainClass = compile(script, configuration, classes);
+        store(entry, mainClass, classes);
+        try {
+            return classLoaders.define(pluginId, mainClass, classes);
+        } catch (ClassNotFoundException e) {
+            throw new IOException(e);
+        }
+    }
+
+    public long getHitCount() {
+        return hits.get();
+    }
+
+    public long getMissCount() {
+        return misses.get();
+    }
+
+    public long getEvictionCount() {
+        return evictions.get();
+    }
+
+    private String compile(Path script, CompilerConfiguration configuration, Map<String, byte[]> classes) {
+        CompilationUnit compilationUnit = classLoaders.createCompilationUnit(configuration);
+        compilationUnit.addSource(script.toFile());
+        compilationUnit.compile(Phases.CLASS_GENERATION);
+        String mainClass = null;
+        for (Object o : compilationUnit.getClasses()) {
+            GroovyClass groovyClass = (GroovyClass) o;
+            classes.put(groovyClass.getName(), groovyClass.getBytes());
+        }
+        String scriptName = script.getFileName().toString();
+        scriptName = scriptName.substring(0, scriptName.lastIndexOf('.'));
+        for (String name : classes.keySet()) {
+            if (name.equals(scriptName) || name.endsWith("." + scriptName)) {
+                mainClass = name;
+            }
+        }
+        if (mainClass == null) {
+            throw new IllegalStateException("No script class generated for " + script);
+        }
+        return mainClass;
+    }
+
+    private Class<? extends Script> define(String pluginId, Path entry) throws IOException, ClassNotFoundException {
+        String mainClass = new String(Files.readAllBytes(entry.resolve(MAIN_CLASS_FILE)), StandardCharsets.UTF_8).trim();
+        Map<String, byte[]> classes = new HashMap<>();
+        try (DirectoryStream<Path> files = Files.newDirectoryStream(entry, "*.class")) {
+            for (Path file : files) {
+                String fileName = file.getFileName().toString();
+                classes.put(fileName.substring(0, fileName.length() - ".class".length()), Files.readAllBytes(file));
+            }
+        }
+        return classLoaders.define(pluginId, mainClass, classes);
+    }
+
+    private synchronized void store(Path entry, String mainClass, Map<String, byte[]> classes) throws IOException {
+        if (Files.isDirectory(entry)) {
+            return;
+        }
+        Files.createDirectories(cacheDir);
+        Path temp = Files.createTempDirectory(cacheDir, "tmp-");
+        try {
+            for (Map.Entry<String, byte[]> cls : classes.entrySet()) {
+                Files.write(temp.resolve(cls.getKey() + ".class"), cls.getValue());
+            }
+            Files.write(temp.resolve(MAIN_CLASS_FILE), mainClass.getBytes(StandardCharsets.UTF_8));
+            Files.move(temp, entry, StandardCopyOption.ATOMIC_MOVE);
+        } catch (IOException e) {
+            deleteEntry(temp);
+            throw e;
+        }
+        evict();
+    }
+
+    /**
+     * Removes least recently used entries until the cache fits into its size limit.
+     */
+    private void evict() throws IOException {
+        List<Path> entries = new ArrayList<>();
+        Map<Path, Long> sizes = new HashMap<>();
+        Map<Path, FileTime> times = new HashMap<>();
+        long total = 0;
+        try (DirectoryStream<Path> dirs = Files.newDirectoryStream(cacheDir)) {
+            for (Path dir : dirs) {
+                if (!Files.isDirectory(dir) || dir.getFileName().toString().startsWith("tmp-")) {
+                    continue;
+                }
+                long size = 0;
+                try (Stream<Path> files = Files.list(dir)) {
+                    for (Path file : (Iterable<Path>) files::iterator) {
+                        size += Files.size(file);
+                    }
+                }
+                entries.add(dir);
+                sizes.put(dir, size);
+                times.put(dir, Files.getLastModifiedTime(dir));
+                total += size;
+            }
+        }
+        entries.sort(Comparator.comparing(times::get));
+        for (Path dir : entries) {
+            if (total <= maxSize) {
+                break;
+            }
+            deleteEntry(dir);
+            total -= sizes.get(dir);
+            evictions.incrementAndGet();
+        }
+    }
+
+    private static void deleteEntry(Path dir) {
+        try (Stream<Path> files = Files.walk(dir)) {
+            files.sorted(Comparator.reverseOrder()).forEach(path -> path.toFile().delete());
+        } catch (IOException e) {
+            // Запись будет удалена при следующем вытеснении
+        }
+    }
+
+    /**
+     * Key of the cache entry: the script, the contents of its classpath (the plugin
+     * directory with its subdirectories), compiler settings, the Groovy version and the
+     * application classes the scripts are compiled against, so entries of a previous
+     * application build are not used.
+     */
+    private static String key(Path script, CompilerConfiguration configuration, String options) throws IOException {
+        MessageDigest digest;
+        try {
+            digest = MessageDigest.getInstance("SHA-256");
+        } catch (NoSuchAlgorithmException e) {
+            throw new IllegalStateException(e);
+        }
+        update(digest, GroovySystem.getVersion());
+        digest.update(appFingerprint());
+        update(digest, String.valueOf(configuration.getScriptBaseClass()));
+        update(digest, String.valueOf(configuration.getTargetBytecode()));
+        update(digest, String.join(java.io.File.pathSeparator, configuration.getClasspath()));
+        update(digest, String.valueOf(options));
+        update(digest, script.getFileName().toString());
+        digest.update(Files.readAllBytes(script));
+        for (String entry : configuration.getClasspath()) {
+            update(digest, entry);
+            updateClasspathEntry(digest, Paths.get(entry));
+        }
+        StringBuilder builder = new StringBuilder();
+        for (byte b : digest.digest()) {
+            builder.append(String.format("%02x", b));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Adds the sources, classes and jars under a classpath directory, or the classpath jar
+     * itself, in the order of their relative paths, so a change of a helper class in
+     * a subpackage or of a jar changes the key.
+     */
+    private static void updateClasspathEntry(MessageDigest digest, Path entry) throws IOException {
+        if (Files.isRegularFile(entry)) {
+            digest.update(Files.readAllBytes(entry));
+            return;
+        }
+        if (!Files.isDirectory(entry)) {
+            return;
+        }
+        Map<String, Path> files = new TreeMap<>();
+        try (Stream<Path> walk = Files.walk(entry)) {
+            for (Path file : (Iterable<Path>) walk::iterator) {
+                if (Files.isRegularFile(file) && isClasspathFile(file)) {
+                    // Разделитель '/' на всех системах, чтобы порядок не зависел от ОС
+                    files.put(entry.relativize(file).toString().replace(java.io.File.separatorChar, '/'), file);
+                }
+            }
+        }
+        for (Map.Entry<String, Path> file : files.entrySet()) {
+            byte[] content = Files.readAllBytes(file.getValue());
+            update(digest, file.getKey());
+            update(digest, String.valueOf(content.length));
+            digest.update(content);
+        }
+    }
+
+    private static boolean isClasspathFile(Path file) {
+        String name = file.getFileName().toString();
+        for (String extension : CLASSPATH_EXTENSIONS) {
+            if (name.endsWith(extension)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * SHA-256 of the script base class, the plugin API and the type checking extension.
+     */
+    private static byte[] appFingerprint() throws IOException {
+        byte[] fingerprint = appFingerprint;
+        if (fingerprint == null) {
+            MessageDigest digest;
+            try {
+                digest = MessageDigest.getInstance("SHA-256");
+            } catch (NoSuchAlgorithmException e) {
+                throw new IllegalStateException(e);
+            }
+            ClassLoader classLoader = GroovyScriptCache.class.getClassLoader();
+            for (String resource : APP_RESOURCES) {
+                update(digest, resource);
+                try (InputStream in = classLoader.getResourceAsStream(resource)) {
+                    if (in == null) {
+                        throw new IOException("Resource " + resource + " not found");
+                    }
+                    digest.update(in.readAllBytes());
+                }
+            }
+            fingerprint = digest.digest();
+            appFingerprint = fingerprint;
+        }
+        return fingerprint;
+    }
+
+    private static void update(MessageDigest digest, String value) {
+        digest.update(value.getBytes(StandardCharsets.UTF_8));
+        digest.update((byte) 0);
+    }
+
+}
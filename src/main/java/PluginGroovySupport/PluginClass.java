@@ -3,19 +3,46 @@ package PluginGroovySupport;
 
 import PluginSystem.Plugin;
 import PluginSystem.PluginLoader;
+import PluginSystem.PluginManifest;
 import PluginSystem.PluginManager;
 import PluginSystem.PluginProxy;
-import groovy.lang.GroovyShell;
 import groovy.lang.Script;
+import groovy.transform.CompileStatic;
 import org.codehaus.groovy.control.CompilerConfiguration;
+import org.codehaus.groovy.control.customizers.ASTTransformationCustomizer;
 
 import java.nio.file.Files;
 import java.nio.file.Path;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.Map;
 
 public class PluginClass implements Plugin, PluginLoader {
 
+    static final String TYPE_CHECKING_EXTENSION = "PluginGroovySupport/GroovyPluginTypeChecking.groovy";
+
+    private final GroovyClassLoaders classLoaders = new GroovyClassLoaders();
+    private GroovyScriptCache scriptCache = null;
+
     @Override
     public boolean initialize(PluginProxy pluginProxy) {
+        scriptCache = new GroovyScriptCache(pluginProxy.getDataDirPath().resolve("groovy-cache"), classLoaders);
+        pluginProxy.addMessageListener("core-events:plugin-unload", (sender, tag, data) -> {
+            classLoaders.release(data.toString());
+        });
+        pluginProxy.addMessageListener("core-events:plugin-reload", (sender, tag, data) -> {
+            classLoaders.releasePreviousVersions(data.toString());
+        });
+        pluginProxy.addMessageListener("groovy:query-class-loaders", (sender, tag, data) -> {
+            Object seq = (data instanceof Map) ? ((Map) data).get("seq") : null;
+            pluginProxy.sendMessage(sender, new HashMap<String, Object>() {{
+                put("seq", seq);
+                put("loaders", classLoaders.getStatistics());
+                put("cacheHits", scriptCache.getHitCount());
+                put("cacheMisses", scriptCache.getMissCount());
+                put("cacheEvictions", scriptCache.getEvictionCount());
+            }});
+        });
         PluginManager.getInstance().registerPluginLoader(this);
         return true;
     }
@@ -39,16 +66,35 @@ public class PluginClass implements Plugin, PluginLoader {
     @Override
     public void loadByPath(Path path) throws Throwable {
         String id = path.getFileName().toString();
+        PluginManager.getInstance().initializePlugin(id, compile(path, PluginManifest.load(path)));
+    }
+
+    @Override
+    public Plugin compile(Path path, PluginManifest manifest) throws Throwable {
         if (Files.isDirectory(path)) {
             path = path.resolve("plugin.groovy");
         }
+        boolean compileStatic = manifest.getBoolean("compileStatic");
+        CompilerConfiguration compilerConfiguration = createCompilerConfiguration(compileStatic);
+        compilerConfiguration.setClasspath(path.getParent().toString());
+        Class<? extends Script> scriptClass = scriptCache.loadScriptClass(manifest.getId(), path, compilerConfiguration,
+                compileStatic ? "compileStatic" : "");
+        return (GroovyPlugin) scriptClass.getDeclaredConstructor().newInstance();
+    }
+
+    /**
+     * Configuration for plugin scripts. With compileStatic (manifest key "compileStatic=true")
+     * the script is compiled with @CompileStatic and a type checking extension that knows
+     * message data is untyped and leaves calls on it dynamic.
+     */
+    static CompilerConfiguration createCompilerConfiguration(boolean compileStatic) {
         CompilerConfiguration compilerConfiguration = new CompilerConfiguration();
         compilerConfiguration.setScriptBaseClass("PluginGroovySupport.GroovyPlugin");
-        compilerConfiguration.setClasspath(path.getParent().toString());
-        GroovyShell groovyShell = new GroovyShell(compilerConfiguration);
-        Script script = groovyShell.parse(path.toFile());
-        GroovyPlugin plugin = (GroovyPlugin) script;
-        PluginManager.getInstance().initializePlugin(id, plugin);
+        if (compileStatic) {
+            compilerConfiguration.addCompilationCustomizers(new ASTTransformationCustomizer(
+                    Collections.singletonMap("extensions", TYPE_CHECKING_EXTENSION), CompileStatic.class));
+        }
+        return compilerConfiguration;
     }
 
 }
@@ -0,0 +1,15 @@
+package PluginSystem;
+
+import java.util.Collections;
+import java.util.List;
+
+public interface BatchMessageListener extends MessageListener {
+	
+	void handleBatch(String sender, String tag, List<Object> batch);
+	
+	@Override
+	default void handleMessage(String sender, String tag, Object data) {
+		handleBatch(sender, tag, Collections.singletonList(data));
+	}
+	
+}
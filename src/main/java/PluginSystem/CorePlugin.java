@@ -9,6 +9,9 @@ import java.util.*;
 public class CorePlugin implements Plugin, MessageListener {
 
     private final Map<String, List<AlternativeInfo>> alternatives = new HashMap<>();
+    /* Скомпилированная таблица маршрутов: исходный тег -> маршрут к лучшей альтернативе.
+       Пересобирается целиком при каждом изменении альтернатив */
+    private volatile Map<String, Route> routes = Collections.emptyMap();
     private PluginProxy pluginProxy = null;
 
     @Override
@@ -32,31 +35,21 @@ public class CorePlugin implements Plugin, MessageListener {
                     (Integer) m.get("priority"));
         });
         pluginProxy.addMessageListener("core:query-alternatives-map", (sender, tag, data) -> {
-            Object seq = ((Map) data).get("seq");
+            Object seq = (data instanceof Map) ? ((Map) data).get("seq") : null;
             pluginProxy.sendMessage(sender, new HashMap<String, Object>() {{
                 put("seq", seq);
                 put("map", getAlternativesMap());
             }});
         });
+        pluginProxy.addMessageListener("core:query-metrics", (sender, tag, data) -> {
+            Object seq = (data instanceof Map) ? ((Map) data).get("seq") : null;
+            pluginProxy.sendMessage(sender, new HashMap<String, Object>() {{
+                put("seq", seq);
+                put("metrics", PluginManager.getInstance().queryMetrics());
+            }});
+        });
         pluginProxy.addMessageListener("core-events:plugin-unload", (sender, tag, data) -> {
-            String plugin = data.toString();
-            Iterator<Map.Entry<String, List<AlternativeInfo>>> mapIterator = alternatives.entrySet().iterator();
-            while (mapIterator.hasNext()) {
-                Map.Entry<String, List<AlternativeInfo>> entry = mapIterator.next();
-                List<AlternativeInfo> l = entry.getValue();
-                Iterator<AlternativeInfo> iterator = l.iterator();
-                while (iterator.hasNext()) {
-                    AlternativeInfo info = iterator.next();
-                    if (info.plugin.equals(plugin)) {
-                        iterator.remove();
-                    }
-                }
-                if (l.isEmpty()) {
-                    String srcTag = entry.getKey();
-                    pluginProxy.removeMessageListener(srcTag, this);
-                    mapIterator.remove();
-                }
-            }
+            removePluginAlternatives(data.toString());
         });
         pluginProxy.addMessageListener("core:get-plugin-data-dir", (sender, tag, data) -> {
             try {
@@ -71,7 +64,7 @@ public class CorePlugin implements Plugin, MessageListener {
                 if (!Files.isDirectory(pluginDataDirPath)) {
                     pluginDataDirPath.toFile().mkdirs();
                 }
-                Object seq = ((Map) data).get("seq");
+                Object seq = (data instanceof Map) ? ((Map) data).get("seq") : null;
                 pluginProxy.sendMessage(sender, new HashMap<String, Object>() {{
                     put("seq", seq);
                     put("path", pluginDataDirPath.toString());
@@ -83,28 +76,42 @@ public class CorePlugin implements Plugin, MessageListener {
         return true;
     }
 
-    private void registerAlternative(String srcTag, String dstTag, String plugin, int priority) {
+    private synchronized void removePluginAlternatives(String plugin) {
+        Iterator<Map.Entry<String, List<AlternativeInfo>>> mapIterator = alternatives.entrySet().iterator();
+        while (mapIterator.hasNext()) {
+            Map.Entry<String, List<AlternativeInfo>> entry = mapIterator.next();
+            List<AlternativeInfo> l = entry.getValue();
+            l.removeIf(info -> info.plugin.equals(plugin));
+            if (l.isEmpty()) {
+                String srcTag = entry.getKey();
+                pluginProxy.removeMessageListener(srcTag, this);
+                mapIterator.remove();
+            }
+        }
+        rebuildRoutes();
+    }
+
+    private synchronized void registerAlternative(String srcTag, String dstTag, String plugin, int priority) {
         List<AlternativeInfo> l = alternatives.getOrDefault(srcTag, null);
         if (l == null) {
             l = new ArrayList<>();
             alternatives.put(srcTag, l);
         }
-        ListIterator<AlternativeInfo> iterator = l.listIterator();
-        while (iterator.hasNext()) {
-            AlternativeInfo info = iterator.next();
+        for (AlternativeInfo info : l) {
             if (info.plugin.equals(plugin) && info.tag.equals(dstTag)) {
                 changeAlternativePriority(srcTag, dstTag, priority);
                 return;
             }
-            if (info.priority < priority) break;
         }
-        iterator.add(new AlternativeInfo(dstTag, plugin, priority));
+        l.add(new AlternativeInfo(dstTag, plugin, priority));
+        sortAlternatives(l);
+        rebuildRoutes();
         if (l.size() == 1) {
             pluginProxy.addMessageListener(srcTag, this);
         }
     }
 
-    private void unregisterAlternative(String srcTag, String dstTag, String plugin) {
+    private synchronized void unregisterAlternative(String srcTag, String dstTag, String plugin) {
         List<AlternativeInfo> l = alternatives.getOrDefault(srcTag, null);
         if (l == null) {
             return;
@@ -117,31 +124,69 @@ public class CorePlugin implements Plugin, MessageListener {
             pluginProxy.removeMessageListener(srcTag, this);
             System.err.println("No more alternatives for " + srcTag);
         }
+        rebuildRoutes();
     }
 
-    private void changeAlternativePriority(String srcTag, String dstTag, int priority) {
+    private synchronized void changeAlternativePriority(String srcTag, String dstTag, int priority) {
         List<AlternativeInfo> l = alternatives.getOrDefault(srcTag, null);
         if (l == null) {
             return;
         }
-        ListIterator<AlternativeInfo> iterator = l.listIterator();
-        while (iterator.hasNext()) {
-            AlternativeInfo info = iterator.next();
+        for (AlternativeInfo info : l) {
             if (info.tag.equals(dstTag) && (info.priority != priority)) {
-                iterator.remove();
-                iterator = l.listIterator();
-                while (iterator.hasNext()) {
-                    AlternativeInfo info2 = iterator.next();
-                    if (info2.priority < priority) break;
-                }
+                // Альтернатива с новым приоритетом идёт после остальных с таким же приоритетом
+                l.remove(info);
                 info.priority = priority;
-                iterator.add(info);
+                l.add(info);
+                sortAlternatives(l);
+                rebuildRoutes();
                 break;
             }
         }
     }
 
-    private Map<String, Object> getAlternativesMap() {
+    private static void sortAlternatives(List<AlternativeInfo> l) {
+        // Сортировка устойчивая: при равном приоритете сохраняется порядок регистрации
+        l.sort((a, b) -> Integer.compare(b.priority, a.priority));
+    }
+
+    /**
+     * Compiles the alternatives into a new routing table and publishes it.
+     * Tags whose chain of top alternatives loops back to itself are not routed.
+     */
+    private void rebuildRoutes() {
+        Map<String, String> targets = new HashMap<>();
+        for (Map.Entry<String, List<AlternativeInfo>> entry : alternatives.entrySet()) {
+            if (!entry.getValue().isEmpty()) {
+                targets.put(entry.getKey(), entry.getValue().get(0).tag);
+            }
+        }
+        PluginManager pluginManager = PluginManager.getInstance();
+        Map<String, Route> compiled = new HashMap<>();
+        for (Map.Entry<String, String> entry : targets.entrySet()) {
+            String srcTag = entry.getKey();
+            if (isCyclic(srcTag, targets)) {
+                System.err.println("Alternative " + entry.getValue() + " for tag " + srcTag + " loops, route dropped");
+                continue;
+            }
+            compiled.put(srcTag, new Route(pluginManager.getTagId(entry.getValue())));
+        }
+        routes = Collections.unmodifiableMap(compiled);
+    }
+
+    private static boolean isCyclic(String srcTag, Map<String, String> targets) {
+        Set<String> visited = new HashSet<>();
+        String tag = srcTag;
+        while (tag != null && visited.add(tag)) {
+            tag = targets.get(tag);
+            if (srcTag.equals(tag)) {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    private synchronized Map<String, Object> getAlternativesMap() {
         Map<String, Object> m = new HashMap<>();
         for (Map.Entry<String, List<AlternativeInfo>> entry : alternatives.entrySet()) {
             List<Map<String, Object>> l = new ArrayList<>();
@@ -159,11 +204,19 @@ public class CorePlugin implements Plugin, MessageListener {
 
     @Override
     public void handleMessage(String sender, String tag, Object data) {
-        List<AlternativeInfo> l = alternatives.getOrDefault(tag, null);
-        if (l == null) return;
-        if (l.isEmpty()) return;
-        AlternativeInfo info = l.get(0);
-        PluginManager.getInstance().sendMessage(sender, info.tag, data);
+        Route route = routes.get(tag);
+        if (route == null) return;
+        // Запрос, пересланный альтернативе, сохраняет свой ID корреляции
+        PluginManager.getInstance().sendMessage(sender, route.tagId, data, PluginManager.currentCorrelationId());
+    }
+
+    private static final class Route {
+        final int tagId;
+
+        Route(int tagId) {
+            this.tagId = tagId;
+        }
+
     }
 
     private static class AlternativeInfo {
@@ -0,0 +1,155 @@
+package PluginSystem;
+
+import java.util.ArrayDeque;
+import java.util.Queue;
+import java.util.concurrent.ConcurrentLinkedQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Hashed wheel timer for large numbers of short, mostly cancelled timeouts.
+ * Scheduling and cancelling are O(1), expired timeouts are run on the single timer thread
+ * with a precision of one tick.
+ */
+final class HashedWheelTimer {
+
+	private final String name;
+	private final long tickNanos;
+	private final int mask;
+	private final Bucket[] wheel;
+	private final Queue<Timeout> pendingTimeouts = new ConcurrentLinkedQueue<>();
+	private final AtomicBoolean started = new AtomicBoolean(false);
+	private final long startTime = System.nanoTime();
+	private long tick = 0;
+
+	HashedWheelTimer(String name, long tickDuration, TimeUnit unit, int wheelSize) {
+		if (Integer.bitCount(wheelSize) != 1) {
+			throw new IllegalArgumentException("Wheel size must be a power of two: " + wheelSize);
+		}
+		this.name = name;
+		this.tickNanos = unit.toNanos(tickDuration);
+		this.mask = wheelSize - 1;
+		this.wheel = new Bucket[wheelSize];
+		for (int i = 0; i < wheelSize; ++i) {
+			wheel[i] = new Bucket();
+		}
+	}
+
+	Timeout schedule(Runnable task, long delay, TimeUnit unit) {
+		start();
+		Timeout timeout = new Timeout(task, System.nanoTime() - startTime + unit.toNanos(delay));
+		pendingTimeouts.add(timeout);
+		return timeout;
+	}
+
+	private void start() {
+		if (started.compareAndSet(false, true)) {
+			Thread thread = new Thread(this::run, name);
+			thread.setDaemon(true);
+			thread.start();
+		}
+	}
+
+	private void run() {
+		tick = (System.nanoTime() - startTime) / tickNanos;
+		while (true) {
+			waitForNextTick();
+			transferPendingTimeouts();
+			wheel[(int) (tick & mask)].expire();
+			tick++;
+		}
+	}
+
+	private void waitForNextTick() {
+		long deadline = tickNanos * (tick + 1);
+		while (true) {
+			long sleepNanos = deadline - (System.nanoTime() - startTime);
+			if (sleepNanos <= 0) {
+				return;
+			}
+			try {
+				TimeUnit.NANOSECONDS.sleep(sleepNanos);
+			} catch (InterruptedException e) {
+				// Timer thread lives as long as the application
+			}
+		}
+	}
+
+	private void transferPendingTimeouts() {
+		Timeout timeout;
+		while ((timeout = pendingTimeouts.poll()) != null) {
+			if (timeout.isCancelled()) {
+				continue;
+			}
+			long expirationTick = timeout.deadline / tickNanos;
+			timeout.remainingRounds = (expirationTick - tick) / wheel.length;
+			wheel[(int) (Math.max(expirationTick, tick) & mask)].add(timeout);
+		}
+	}
+
+	static final class Timeout {
+
+		private static final int WAITING = 0;
+		private static final int CANCELLED = 1;
+		private static final int EXPIRED = 2;
+
+		private final Runnable task;
+		private final long deadline;
+		private final AtomicInteger state = new AtomicInteger(WAITING);
+		long remainingRounds;
+
+		private Timeout(Runnable task, long deadline) {
+			this.task = task;
+			this.deadline = deadline;
+		}
+
+		/**
+		 * Cancels the timeout, returns false if it has already expired or been cancelled.
+		 */
+		boolean cancel() {
+			return state.compareAndSet(WAITING, CANCELLED);
+		}
+
+		boolean isCancelled() {
+			return state.get() == CANCELLED;
+		}
+
+		private void expire() {
+			if (state.compareAndSet(WAITING, EXPIRED)) {
+				try {
+					task.run();
+				} catch (Throwable e) {
+					PluginManager.log(e);
+				}
+			}
+		}
+
+	}
+
+	private static final class Bucket {
+
+		private final ArrayDeque<Timeout> timeouts = new ArrayDeque<>();
+
+		void add(Timeout timeout) {
+			timeouts.addLast(timeout);
+		}
+
+		void expire() {
+			for (int i = timeouts.size(); i > 0; --i) {
+				Timeout timeout = timeouts.pollFirst();
+				if (timeout.isCancelled()) {
+					continue;
+				}
+				if (timeout.remainingRounds <= 0) {
+					timeout.expire();
+				} else {
+					timeout.remainingRounds--;
+					timeouts.addLast(timeout);
+				}
+			}
+		}
+
+	}
+
+}
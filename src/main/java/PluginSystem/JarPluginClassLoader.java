@@ -0,0 +1,223 @@
+package PluginSystem;
+
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.net.URLConnection;
+import java.net.URLStreamHandler;
+import java.nio.file.FileSystem;
+import java.nio.file.FileSystems;
+import java.nio.file.Path;
+import java.security.CodeSource;
+import java.security.ProtectionDomain;
+import java.security.cert.Certificate;
+import java.util.Collections;
+import java.util.Enumeration;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.jar.JarEntry;
+import java.util.jar.JarFile;
+import java.util.jar.Manifest;
+import java.util.zip.ZipFile;
+
+/**
+ * Class loader of one jar plugin.
+ * The jar is read once when the loader is created: every entry is unpacked into a hash index
+ * and the file is closed, so finding a class or resource is a map lookup and the jar may be
+ * rewritten or replaced while the plugin is loaded. Reading goes through {@link JarFile}, so
+ * Zip64 jars and entries with data descriptors work, and multi-release jars are resolved for
+ * the running Java: an entry from META-INF/versions/N replaces the base entry if N is not
+ * newer than the running Java.
+ *
+ * {@link #close()} drops the index and closes the zip file system opened by
+ * {@link #getResourcePath}, after that the loader cannot load anything.
+ */
+public final class JarPluginClassLoader extends ClassLoader implements Closeable {
+
+	static {
+		registerAsParallelCapable();
+	}
+
+	private static final String PROTOCOL = "minachan-jar";
+
+	private final String pluginId;
+	private final Path jarPath;
+	private final ProtectionDomain protectionDomain;
+	private final URLStreamHandler urlHandler = new EntryURLHandler();
+	private final Manifest manifest;
+	private final boolean multiRelease;
+	/* Содержимое записей jar по имени, пустое после закрытия */
+	private volatile Map<String, byte[]> entries;
+	private FileSystem fileSystem = null;
+	private boolean closed = false;
+	private final AtomicInteger classCount = new AtomicInteger();
+	private final AtomicLong bytecodeBytes = new AtomicLong();
+
+	JarPluginClassLoader(String pluginId, Path jarPath, ClassLoader parent) throws IOException {
+		super("plugin:" + pluginId, parent);
+		this.pluginId = pluginId;
+		this.jarPath = jarPath.toAbsolutePath();
+		URL location = this.jarPath.toUri().toURL();
+		this.protectionDomain = new ProtectionDomain(new CodeSource(location, (Certificate[]) null), null, this, null);
+		try (JarFile jarFile = new JarFile(this.jarPath.toFile(), false, ZipFile.OPEN_READ, Runtime.version())) {
+			Manifest jarManifest = jarFile.getManifest();
+			manifest = (jarManifest != null) ? jarManifest : new Manifest();
+			multiRelease = jarFile.isMultiRelease();
+			Map<String, byte[]> index = new HashMap<>();
+			// Для многоверсионного jar имена записей базовые, содержимое - подходящей версии
+			for (JarEntry entry : (Iterable<JarEntry>) jarFile.versionedStream()::iterator) {
+				if (entry.isDirectory()) {
+					continue;
+				}
+				try (InputStream in = jarFile.getInputStream(entry)) {
+					index.put(entry.getName(), in.readAllBytes());
+				}
+			}
+			entries = index;
+		}
+	}
+
+	public String getPluginId() {
+		return pluginId;
+	}
+
+	public Path getJarPath() {
+		return jarPath;
+	}
+
+	public Manifest getManifest() {
+		return manifest;
+	}
+
+	public boolean isMultiRelease() {
+		return multiRelease;
+	}
+
+	int getClassCount() {
+		return classCount.get();
+	}
+
+	long getBytecodeBytes() {
+		return bytecodeBytes.get();
+	}
+
+	/**
+	 * Path of a resource inside the jar. The zip file system is opened on first use and closed
+	 * together with the loader.
+	 */
+	public synchronized Path getResourcePath(String name) throws IOException {
+		if (closed) {
+			throw new IOException("Class loader of plugin " + pluginId + " is closed");
+		}
+		if (fileSystem == null) {
+			fileSystem = FileSystems.newFileSystem(jarPath, (ClassLoader) null);
+		}
+		return fileSystem.getPath(name);
+	}
+
+	@Override
+	protected Class<?> findClass(String name) throws ClassNotFoundException {
+		byte[] bytes = entries.get(name.replace('.', '/') + ".class");
+		if (bytes == null) {
+			throw new ClassNotFoundException(name);
+		}
+		int lastDot = name.lastIndexOf('.');
+		if (lastDot > 0) {
+			definePackage(name.substring(0, lastDot));
+		}
+		Class<?> cls = defineClass(name, bytes, 0, bytes.length, protectionDomain);
+		classCount.incrementAndGet();
+		bytecodeBytes.addAndGet(bytes.length);
+		return cls;
+	}
+
+	private void definePackage(String packageName) {
+		if (getDefinedPackage(packageName) == null) {
+			try {
+				definePackage(packageName, null, null, null, null, null, null, null);
+			} catch (IllegalArgumentException e) {
+				// Определён параллельно другим потоком
+			}
+		}
+	}
+
+	@Override
+	protected URL findResource(String name) {
+		if (!entries.containsKey(name)) {
+			return null;
+		}
+		try {
+			return new URL(PROTOCOL, null, -1, "/" + name, urlHandler);
+		} catch (MalformedURLException e) {
+			return null;
+		}
+	}
+
+	@Override
+	protected Enumeration<URL> findResources(String name) {
+		URL url = findResource(name);
+		return (url != null) ? Collections.enumeration(Collections.singletonList(url)) : Collections.emptyEnumeration();
+	}
+
+	@Override
+	public InputStream getResourceAsStream(String name) {
+		InputStream stream = (getParent() != null) ? getParent().getResourceAsStream(name) : null;
+		return (stream != null) ? stream : openEntry(name);
+	}
+
+	private InputStream openEntry(String name) {
+		byte[] bytes = entries.get(name);
+		return (bytes != null) ? new ByteArrayInputStream(bytes) : null;
+	}
+
+	/**
+	 * Drops the unpacked entries and closes the zip file system. Classes already loaded keep
+	 * working, new classes and resources of the plugin can no longer be loaded.
+	 */
+	@Override
+	public void close() throws IOException {
+		FileSystem fileSystem;
+		synchronized (this) {
+			if (closed) {
+				return;
+			}
+			closed = true;
+			entries = Collections.emptyMap();
+			fileSystem = this.fileSystem;
+			this.fileSystem = null;
+		}
+		if (fileSystem != null) {
+			fileSystem.close();
+		}
+	}
+
+	private final class EntryURLHandler extends URLStreamHandler {
+
+		@Override
+		protected URLConnection openConnection(URL url) throws IOException {
+			String name = url.getPath().substring(1);
+			return new URLConnection(url) {
+				@Override
+				public void connect() {
+					connected = true;
+				}
+
+				@Override
+				public InputStream getInputStream() throws IOException {
+					InputStream stream = openEntry(name);
+					if (stream == null) {
+						throw new IOException("No entry " + name + " in " + jarPath);
+					}
+					return stream;
+				}
+			};
+		}
+
+	}
+
+}
@@ -0,0 +1,131 @@
+package PluginSystem;
+
+import java.io.IOException;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.TreeMap;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+
+/**
+ * Loader of plugins packed into jars. The class of the plugin is named by the
+ * "Plugin-Class" attribute of the jar manifest, an optional plugin.properties in the root of
+ * the jar is read as the {@link PluginManifest}.
+ * Every version of a plugin gets its own {@link JarPluginClassLoader}, which is closed when
+ * the plugin is unloaded or replaced by a newer version.
+ */
+final class JarPluginLoader implements PluginLoader {
+
+	static final String PLUGIN_CLASS_ATTRIBUTE = "Plugin-Class";
+
+	private final PluginManager pluginManager;
+	/* Загрузчики версий плагина, последний - текущий (старые живут до конца перезагрузки) */
+	private final Map<String, List<JarPluginClassLoader>> pluginLoaders = new ConcurrentHashMap<>();
+
+	JarPluginLoader(PluginManager pluginManager) {
+		this.pluginManager = pluginManager;
+	}
+
+	@Override
+	public boolean matchPath(Path path) {
+		return path.getFileName().toString().endsWith(".jar") && Files.isRegularFile(path);
+	}
+
+	@Override
+	public void loadByPath(Path path) throws Throwable {
+		PluginManifest manifest = PluginManifest.load(path);
+		Plugin plugin = compile(path, manifest);
+		if (!pluginManager.initializePlugin(manifest.getId(), plugin)) {
+			discard(manifest.getId(), plugin);
+		}
+	}
+
+	@Override
+	public Plugin compile(Path path, PluginManifest manifest) throws Throwable {
+		JarPluginClassLoader loader = new JarPluginClassLoader(manifest.getId(), path, PluginManager.class.getClassLoader());
+		try {
+			String className = loader.getManifest().getMainAttributes().getValue(PLUGIN_CLASS_ATTRIBUTE);
+			if (className == null) {
+				throw new IOException("No " + PLUGIN_CLASS_ATTRIBUTE + " attribute in manifest of " + path);
+			}
+			Class<?> cls = loader.loadClass(className.trim());
+			if (!Plugin.class.isAssignableFrom(cls)) {
+				throw new ClassCastException(className + " does not implement " + Plugin.class.getName());
+			}
+			Plugin plugin = (Plugin) cls.getDeclaredConstructor().newInstance();
+			pluginLoaders.computeIfAbsent(manifest.getId(), k -> new CopyOnWriteArrayList<>()).add(loader);
+			return plugin;
+		} catch (Throwable e) {
+			loader.close();
+			throw e;
+		}
+	}
+
+	/**
+	 * Closes the loader of a compiled plugin that was not initialized.
+	 */
+	private void discard(String id, Plugin plugin) {
+		List<JarPluginClassLoader> loaders = pluginLoaders.get(id);
+		if (loaders != null && plugin.getClass().getClassLoader() instanceof JarPluginClassLoader) {
+			JarPluginClassLoader loader = (JarPluginClassLoader) plugin.getClass().getClassLoader();
+			if (loaders.remove(loader)) {
+				close(loader);
+			}
+		}
+	}
+
+	/**
+	 * Closes loaders of an unloaded plugin.
+	 */
+	void release(String pluginId) {
+		List<JarPluginClassLoader> loaders = pluginLoaders.remove(pluginId);
+		if (loaders != null) {
+			for (JarPluginClassLoader loader : loaders) {
+				close(loader);
+			}
+		}
+	}
+
+	/**
+	 * Closes loaders of the previous versions of a reloaded plugin.
+	 */
+	void releasePreviousVersions(String pluginId) {
+		List<JarPluginClassLoader> loaders = pluginLoaders.get(pluginId);
+		if (loaders != null) {
+			while (loaders.size() > 1) {
+				close(loaders.remove(0));
+			}
+		}
+	}
+
+	/**
+	 * Loaded classes and their bytecode size per jar plugin.
+	 */
+	Map<String, Object> getStatistics() {
+		Map<String, Object> m = new TreeMap<>();
+		for (List<JarPluginClassLoader> loaders : pluginLoaders.values()) {
+			if (loaders.isEmpty()) {
+				continue;
+			}
+			JarPluginClassLoader loader = loaders.get(loaders.size() - 1);
+			Map<String, Object> stats = new HashMap<>();
+			stats.put("classes", loader.getClassCount());
+			stats.put("bytecodeBytes", loader.getBytecodeBytes());
+			stats.put("multiRelease", loader.isMultiRelease());
+			m.put(loader.getPluginId(), stats);
+		}
+		return m;
+	}
+
+	private static void close(JarPluginClassLoader loader) {
+		try {
+			loader.close();
+		} catch (IOException e) {
+			PluginManager.log(loader.getPluginId(), e);
+		}
+	}
+
+}
@@ -0,0 +1,208 @@
+package PluginSystem;
+
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Plugin that declares its tags in the manifest ("activationTags") and is compiled and
+ * initialized only when the first message with one of these tags is sent.
+ * Until then a stub listener stands in for it. The stub buffers messages while the plugin
+ * is activated in the background, then the buffered messages are delivered to the real
+ * listeners in order and the stub is replaced by them. Listeners are never called while the
+ * lock of the stub is held, so senders wait only for the state change, not for delivery.
+ */
+final class LazyPlugin implements MessageListener {
+	
+	private static final ExecutorService activationPool = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "plugin-activation-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+	
+	enum State {INACTIVE, ACTIVATING, ACTIVE, FAILED, CANCELLED}
+	
+	private final PluginManager pluginManager;
+	private final Path path;
+	private final PluginManifest manifest;
+	private final PluginLoader loader;
+	private final List<String> tags;
+	private final List<Envelope> buffer = new ArrayList<>();
+	/* Справедливая блокировка: активация не должна ждать бесконечно при потоке сообщений */
+	private final ReentrantLock lock = new ReentrantLock(true);
+	private State state = State.INACTIVE;
+	private PluginProxy proxy = null;
+	private long activationNanos = 0;
+	
+	LazyPlugin(PluginManager pluginManager, Path path, PluginManifest manifest, PluginLoader loader, List<String> tags) {
+		this.pluginManager = pluginManager;
+		this.path = path;
+		this.manifest = manifest;
+		this.loader = loader;
+		this.tags = tags;
+	}
+	
+	String getId() {
+		return manifest.getId();
+	}
+	
+	State getState() {
+		lock.lock();
+		try {
+			return state;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	long getActivationNanos() {
+		lock.lock();
+		try {
+			return activationNanos;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	void register() {
+		for (String tag : tags) {
+			pluginManager.registerMessageListener(tag, this);
+		}
+	}
+	
+	/**
+	 * Removes the stub of a plugin that has not been activated yet.
+	 */
+	boolean cancel() {
+		lock.lock();
+		try {
+			if (state != State.INACTIVE) {
+				return false;
+			}
+			state = State.CANCELLED;
+			for (String tag : tags) {
+				pluginManager.unregisterMessageListener(tag, this);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+	
+	@Override
+	public void handleMessage(String sender, String tag, Object data) {
+		List<MessageListener> listeners;
+		lock.lock();
+		try {
+			switch (state) {
+				case INACTIVE:
+					state = State.ACTIVATING;
+					activationPool.execute(this::activate);
+					// fall through
+				case ACTIVATING:
+					buffer.add(new Envelope(sender, tag, data, PluginManager.currentCorrelationId()));
+					return;
+				case ACTIVE:
+					// Сообщение разослано по старому массиву слушателей до замены заглушки
+					listeners = proxy.getListenersFor(tag);
+					break;
+				default:
+					return;
+			}
+		} finally {
+			lock.unlock();
+		}
+		for (MessageListener listener : listeners) {
+			PluginManager.deliver(listener, sender, tag, data, PluginManager.currentCorrelationId());
+		}
+	}
+	
+	private void activate() {
+		long start = System.nanoTime();
+		PluginProxy activated = null;
+		try {
+			Plugin plugin = loader.compile(path, manifest);
+			if (plugin == null) {
+				throw new Exception("Loader of " + path + " cannot compile plugins separately");
+			}
+			activated = pluginManager.activateLazyPlugin(getId(), plugin);
+		} catch (Throwable e) {
+			PluginManager.log(getId(), e);
+		}
+		List<Envelope> pending;
+		lock.lock();
+		try {
+			if (activated == null) {
+				PluginManager.log("Could not activate plugin " + getId() + ", " + buffer.size() + " messages dropped");
+				state = State.FAILED;
+				buffer.clear();
+				for (String tag : tags) {
+					pluginManager.unregisterMessageListener(tag, this);
+				}
+				return;
+			}
+			pending = new ArrayList<>(buffer);
+			buffer.clear();
+		} finally {
+			lock.unlock();
+		}
+		// Отложенные сообщения доставляются без блокировки: новые тем временем только
+		// добавляются в буфер и доставляются следующим проходом, порядок сохраняется
+		while (true) {
+			for (Envelope envelope : pending) {
+				for (MessageListener listener : activated.getListenersFor(envelope.tag)) {
+					PluginManager.deliver(listener, envelope.sender, envelope.tag, envelope.data, envelope.correlationId);
+				}
+			}
+			lock.lock();
+			try {
+				if (buffer.isEmpty()) {
+					proxy = activated;
+					state = State.ACTIVE;
+					activationNanos = System.nanoTime() - start;
+					break;
+				}
+				pending = new ArrayList<>(buffer);
+				buffer.clear();
+			} finally {
+				lock.unlock();
+			}
+		}
+		// Сообщения, пришедшие заглушке до её замены, доставляются напрямую (состояние ACTIVE)
+		Map<String, List<MessageListener>> stubs = new HashMap<>();
+		for (String tag : tags) {
+			stubs.put(tag, Collections.singletonList(this));
+		}
+		activated.activate(stubs);
+		PluginManager.log("Activated plugin " + getId() + " in " + activationNanos / 1000000 + " ms");
+		pluginManager.getMetrics().lazyPluginActivated(getId());
+	}
+	
+	@Override
+	public String toString() {
+		return "lazy:" + getId();
+	}
+	
+	private static final class Envelope {
+		final String sender;
+		final String tag;
+		final Object data;
+		final long correlationId;
+		
+		Envelope(String sender, String tag, Object data, long correlationId) {
+			this.sender = sender;
+			this.tag = tag;
+			this.data = data;
+			this.correlationId = correlationId;
+		}
+	}
+	
+}
@@ -0,0 +1,359 @@
+package PluginSystem;
+
+import java.util.ArrayDeque;
+import java.util.List;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.Condition;
+import java.util.concurrent.locks.ReentrantLock;
+
+/**
+ * Bounded mailbox of a plugin with asynchronous delivery.
+ * Senders only enqueue a message and return, the mailbox is drained by a task of the
+ * shared delivery pool. At most one drain task per mailbox runs at a time, so a plugin
+ * still receives its messages one by one and in the order they were sent.
+ */
+public final class Mailbox {
+
+	public enum OverflowPolicy {
+		/**
+		 * Sender waits until there is free space in the mailbox.
+		 */
+		BLOCK,
+		/**
+		 * The oldest queued message is discarded to make room for the new one.
+		 */
+		DROP_OLDEST,
+		/**
+		 * The new message is discarded.
+		 */
+		DROP_NEWEST
+	}
+
+	private static final int DRAIN_BATCH = 64;
+	private static final ExecutorService deliveryPool = Executors.newCachedThreadPool(new ThreadFactory() {
+		private final AtomicInteger counter = new AtomicInteger();
+		@Override
+		public Thread newThread(Runnable runnable) {
+			Thread thread = new Thread(runnable, "mailbox-delivery-" + counter.incrementAndGet());
+			thread.setDaemon(true);
+			return thread;
+		}
+	});
+
+	private final String owner;
+	private final int capacity;
+	private final OverflowPolicy policy;
+	private final ArrayDeque<Envelope> queue;
+	private final ReentrantLock lock = new ReentrantLock();
+	private final Condition notFull = lock.newCondition();
+	private final Condition drained = lock.newCondition();
+	/* Сообщения в очереди и доставляемое сейчас, изменяется под lock */
+	private int undelivered = 0;
+	private final AtomicBoolean scheduled = new AtomicBoolean(false);
+	private volatile Thread drainThread = null;
+	private volatile boolean closed = false;
+
+	private volatile int depth = 0;
+	private volatile int maxDepth = 0;
+	private final AtomicLong enqueued = new AtomicLong();
+	private final AtomicLong delivered = new AtomicLong();
+	private final AtomicLong dropped = new AtomicLong();
+	private final AtomicLong totalLatencyNanos = new AtomicLong();
+	private volatile long maxLatencyNanos = 0;
+
+	Mailbox(String owner, int capacity, OverflowPolicy policy) {
+		if (capacity <= 0) {
+			throw new IllegalArgumentException("Mailbox capacity must be positive: " + capacity);
+		}
+		this.owner = owner;
+		this.capacity = capacity;
+		this.policy = policy;
+		this.queue = new ArrayDeque<>(Math.min(capacity, 1024));
+	}
+
+	/**
+	 * Wraps the listener so that messages for it are queued in this mailbox.
+	 */
+	MessageListener wrap(MessageListener listener) {
+		return new Delivery(listener);
+	}
+
+	/**
+	 * Returns the listener wrapped by {@link #wrap} or the listener itself.
+	 */
+	static MessageListener unwrap(MessageListener listener) {
+		return (listener instanceof Mailbox.Delivery) ? ((Mailbox.Delivery) listener).listener : listener;
+	}
+
+	void post(MessageListener listener, String sender, String tag, Object data) {
+		post(new Envelope(listener, sender, tag, data, null, PluginManager.currentCorrelationId(),
+				System.nanoTime()));
+	}
+
+	void postBatch(MessageListener listener, String sender, String tag, List<Object> batch) {
+		post(new Envelope(listener, sender, tag, null, batch, 0, System.nanoTime()));
+	}
+
+	private void post(Envelope envelope) {
+		lock.lock();
+		try {
+			if (closed) {
+				dropped.incrementAndGet();
+				return;
+			}
+			if (queue.size() >= capacity) {
+				switch (policy) {
+					case DROP_NEWEST:
+						dropped.incrementAndGet();
+						return;
+					case DROP_OLDEST:
+						queue.pollFirst();
+						--undelivered;
+						dropped.incrementAndGet();
+						break;
+					case BLOCK:
+						// Drain thread of this mailbox must not wait for itself
+						while (queue.size() >= capacity && !closed && Thread.currentThread() != drainThread) {
+							notFull.awaitUninterruptibly();
+						}
+						if (closed) {
+							dropped.incrementAndGet();
+							return;
+						}
+						break;
+				}
+			}
+			queue.addLast(envelope);
+			++undelivered;
+			int size = queue.size();
+			depth = size;
+			if (size > maxDepth) {
+				maxDepth = size;
+			}
+		} finally {
+			lock.unlock();
+		}
+		enqueued.incrementAndGet();
+		schedule();
+	}
+
+	private void schedule() {
+		if (scheduled.compareAndSet(false, true)) {
+			deliveryPool.execute(this::drain);
+		}
+	}
+
+	private void drain() {
+		drainThread = Thread.currentThread();
+		Envelope envelope = null;
+		try {
+			for (int i = 0; i < DRAIN_BATCH; ++i) {
+				envelope = poll(envelope != null);
+				if (envelope == null) {
+					break;
+				}
+				long latency = System.nanoTime() - envelope.enqueuedAt;
+				totalLatencyNanos.addAndGet(latency);
+				if (latency > maxLatencyNanos) {
+					maxLatencyNanos = latency;
+				}
+				try {
+					if (envelope.batch != null) {
+						PluginManager.deliverBatch(envelope.listener, envelope.sender, envelope.tag, envelope.batch);
+					} else {
+						PluginManager.deliver(envelope.listener, envelope.sender, envelope.tag, envelope.data,
+								envelope.correlationId);
+					}
+				} catch (Throwable e) {
+					PluginManager.log(owner, e);
+				}
+				delivered.incrementAndGet();
+			}
+		} finally {
+			if (envelope != null) {
+				finished();
+			}
+			drainThread = null;
+			scheduled.set(false);
+		}
+		if (depth > 0 && !closed) {
+			schedule();
+		}
+	}
+
+	/**
+	 * Takes the next message, first counting the previous one as delivered if there was one.
+	 */
+	private Envelope poll(boolean previousDelivered) {
+		lock.lock();
+		try {
+			if (previousDelivered) {
+				countDelivered();
+			}
+			Envelope envelope = queue.pollFirst();
+			if (envelope != null) {
+				depth = queue.size();
+				notFull.signal();
+			}
+			return envelope;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void finished() {
+		lock.lock();
+		try {
+			countDelivered();
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	private void countDelivered() {
+		if (--undelivered == 0) {
+			drained.signalAll();
+		}
+	}
+
+	/**
+	 * Waits until all queued messages are delivered, returns false on timeout.
+	 */
+	boolean awaitDrained(long timeoutMillis) throws InterruptedException {
+		long nanos = TimeUnit.MILLISECONDS.toNanos(timeoutMillis);
+		lock.lock();
+		try {
+			while (undelivered > 0) {
+				if (nanos <= 0) {
+					return false;
+				}
+				nanos = drained.awaitNanos(nanos);
+			}
+			return true;
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	/**
+	 * Discards all queued messages and rejects further ones.
+	 */
+	void close() {
+		lock.lock();
+		try {
+			closed = true;
+			dropped.addAndGet(queue.size());
+			undelivered -= queue.size();
+			queue.clear();
+			depth = 0;
+			notFull.signalAll();
+			if (undelivered == 0) {
+				drained.signalAll();
+			}
+		} finally {
+			lock.unlock();
+		}
+	}
+
+	public int getCapacity() {
+		return capacity;
+	}
+
+	public OverflowPolicy getPolicy() {
+		return policy;
+	}
+
+	public int getQueueDepth() {
+		return depth;
+	}
+
+	public int getMaxQueueDepth() {
+		return maxDepth;
+	}
+
+	public long getEnqueuedCount() {
+		return enqueued.get();
+	}
+
+	public long getDeliveredCount() {
+		return delivered.get();
+	}
+
+	public long getDroppedCount() {
+		return dropped.get();
+	}
+
+	/**
+	 * Average time between enqueuing a message and the start of its delivery, in nanoseconds.
+	 */
+	public long getAverageLatencyNanos() {
+		long count = delivered.get();
+		return (count > 0) ? totalLatencyNanos.get() / count : 0;
+	}
+
+	public long getMaxLatencyNanos() {
+		return maxLatencyNanos;
+	}
+
+	@Override
+	public String toString() {
+		return "Mailbox[" + owner + ", depth=" + depth + "/" + capacity + ", policy=" + policy +
+				", delivered=" + delivered.get() + ", dropped=" + dropped.get() + "]";
+	}
+
+	private static final class Envelope {
+
+		final MessageListener listener;
+		final String sender;
+		final String tag;
+		final Object data;
+		/* Пачка сообщений или null, если доставляется одно сообщение data */
+		final List<Object> batch;
+		final long correlationId;
+		final long enqueuedAt;
+
+		Envelope(MessageListener listener, String sender, String tag, Object data, List<Object> batch,
+		         long correlationId, long enqueuedAt) {
+			this.listener = listener;
+			this.sender = sender;
+			this.tag = tag;
+			this.data = data;
+			this.batch = batch;
+			this.correlationId = correlationId;
+			this.enqueuedAt = enqueuedAt;
+		}
+
+	}
+
+	private final class Delivery implements BatchMessageListener {
+
+		private final MessageListener listener;
+
+		Delivery(MessageListener listener) {
+			this.listener = listener;
+		}
+
+		@Override
+		public void handleMessage(String sender, String tag, Object data) {
+			post(listener, sender, tag, data);
+		}
+
+		@Override
+		public void handleBatch(String sender, String tag, List<Object> batch) {
+			postBatch(listener, sender, tag, batch);
+		}
+
+		@Override
+		public String toString() {
+			return "async:" + listener;
+		}
+
+	}
+
+}
@@ -0,0 +1,394 @@
+package PluginSystem;
+
+import java.lang.management.ManagementFactory;
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ScheduledExecutorService;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.LongAdder;
+import javax.management.ObjectName;
+
+/**
+ * Instrumentation of the message bus: publish counts per tag, invocation latency histogram
+ * per listener and totals per plugin. Recording only touches counters that are reached
+ * without lookups, and only every {@value #TIMING_INTERVAL}th invocation of a listener is
+ * timed (reading the clock costs more than the counters), so it is on by default (see
+ * MetricsOverheadBenchmark); start with -Dminachan.metrics=false to turn it off.
+ */
+public final class MessageBusMetrics implements MessageBusMetricsMXBean {
+	
+	static final boolean ENABLED = Boolean.parseBoolean(System.getProperty("minachan.metrics", "true"));
+	private static final long RATE_WINDOW_MILLIS = 1000;
+	/* Степень двойки: время замеряется у каждого TIMING_INTERVAL-го вызова слушателя */
+	static final int TIMING_INTERVAL = 16;
+	
+	private final MessageDispatchTable table;
+	/* Сообщения с тегами, которых нет в таблице; остальные считаются в слотах */
+	private final LongAdder unslotted = new LongAdder();
+	private final LongAdder unrouted = new LongAdder();
+	private final Map<String, PluginCounters> plugins = new ConcurrentHashMap<>();
+	private final Set<InstrumentedListener> listeners = ConcurrentHashMap.newKeySet();
+	/* Плагины с отложенной активацией: id -> был ли активирован */
+	private final Map<String, Boolean> lazyPlugins = new ConcurrentHashMap<>();
+	/* Замер темпа раз в окно, читатели только смотрят последнее значение */
+	private final ScheduledExecutorService sampler = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "bus-metrics");
+		thread.setDaemon(true);
+		return thread;
+	});
+	private long sampleTimestamp = System.nanoTime();
+	private long sampleCount = 0;
+	private volatile double rate = 0;
+	
+	MessageBusMetrics(MessageDispatchTable table) {
+		this.table = table;
+	}
+	
+	/**
+	 * Registers the MBean and starts sampling the publish rate.
+	 */
+	void start() {
+		sampler.scheduleAtFixedRate(this::sampleRate, RATE_WINDOW_MILLIS, RATE_WINDOW_MILLIS, TimeUnit.MILLISECONDS);
+		try {
+			ManagementFactory.getPlatformMBeanServer().registerMBean(this,
+					new ObjectName("ru.yadev.minachan:type=MessageBus"));
+		} catch (Exception e) {
+			PluginManager.log(e);
+		}
+	}
+	
+	void recordPublish(MessageDispatchTable.Slot slot, int count) {
+		if (slot == null) {
+			unslotted.add(count);
+			unrouted.add(count);
+			return;
+		}
+		slot.published.add(count);
+		if (slot.resolved.length == 0) {
+			unrouted.add(count);
+		}
+	}
+	
+	PluginCounters plugin(String id) {
+		return plugins.computeIfAbsent(id, PluginCounters::new);
+	}
+	
+	/**
+	 * Wraps a listener of a plugin so that its invocations are timed.
+	 */
+	MessageListener instrument(String plugin, String tag, MessageListener listener) {
+		InstrumentedListener instrumented = new InstrumentedListener(plugin(plugin), tag, listener);
+		listeners.add(instrumented);
+		return instrumented;
+	}
+	
+	void release(MessageListener listener) {
+		listener = Mailbox.unwrap(listener);
+		if (listener instanceof InstrumentedListener && listeners.remove(listener)) {
+			InstrumentedListener instrumented = (InstrumentedListener) listener;
+			instrumented.plugin.invocations.add(instrumented.invocations.sum());
+		}
+	}
+	
+	void lazyPluginRegistered(String id) {
+		lazyPlugins.put(id, false);
+	}
+	
+	void lazyPluginActivated(String id) {
+		lazyPlugins.replace(id, true);
+	}
+	
+	void lazyPluginRemoved(String id) {
+		lazyPlugins.remove(id);
+	}
+	
+	@Override
+	public List<String> getInactiveLazyPlugins() {
+		List<String> result = new ArrayList<>();
+		for (Map.Entry<String, Boolean> entry : lazyPlugins.entrySet()) {
+			if (!entry.getValue()) {
+				result.add(entry.getKey());
+			}
+		}
+		Collections.sort(result);
+		return result;
+	}
+	
+	@Override
+	public long getPublishedMessages() {
+		long[] total = { unslotted.sum() };
+		table.forEachSlot(slot -> total[0] += slot.published.sum());
+		return total[0];
+	}
+	
+	@Override
+	public long getUnroutedMessages() {
+		return unrouted.sum();
+	}
+	
+	private void sampleRate() {
+		long now = System.nanoTime();
+		long count = getPublishedMessages();
+		if (now > sampleTimestamp) {
+			rate = (count - sampleCount) * 1e9 / (now - sampleTimestamp);
+		}
+		sampleTimestamp = now;
+		sampleCount = count;
+	}
+	
+	@Override
+	public double getMessagesPerSecond() {
+		return rate;
+	}
+	
+	@Override
+	public Map<String, Long> getTagPublishCounts() {
+		Map<String, Long> counts = new TreeMap<>();
+		table.forEachSlot(slot -> {
+			long count = slot.published.sum();
+			if (count > 0) {
+				counts.put(slot.tag, count);
+			}
+		});
+		return counts;
+	}
+	
+	@Override
+	public List<ListenerStatistics> getListenerStatistics() {
+		List<ListenerStatistics> result = new ArrayList<>();
+		for (InstrumentedListener listener : listeners) {
+			result.add(new ListenerStatistics(listener));
+		}
+		result.sort(Comparator.comparing(ListenerStatistics::getPlugin).thenComparing(ListenerStatistics::getTag));
+		return result;
+	}
+	
+	@Override
+	public List<PluginStatistics> getPluginStatistics() {
+		Map<PluginCounters, Long> invocations = new HashMap<>();
+		for (InstrumentedListener listener : listeners) {
+			invocations.merge(listener.plugin, listener.invocations.sum(), Long::sum);
+		}
+		List<PluginStatistics> result = new ArrayList<>();
+		for (PluginCounters counters : plugins.values()) {
+			result.add(new PluginStatistics(counters, counters.invocations.sum() + invocations.getOrDefault(counters, 0L)));
+		}
+		result.sort(Comparator.comparing(PluginStatistics::getPlugin));
+		return result;
+	}
+	
+	/**
+	 * Snapshot of all metrics for the "core:query-metrics" message.
+	 */
+	Map<String, Object> toMap() {
+		Map<String, Object> m = new HashMap<>();
+		m.put("enabled", ENABLED);
+		m.put("published", getPublishedMessages());
+		m.put("unrouted", getUnroutedMessages());
+		m.put("messagesPerSecond", getMessagesPerSecond());
+		m.put("tags", getTagPublishCounts());
+		List<Map<String, Object>> listenerList = new ArrayList<>();
+		for (ListenerStatistics statistics : getListenerStatistics()) {
+			listenerList.add(statistics.toMap());
+		}
+		m.put("listeners", listenerList);
+		Map<String, Object> pluginMap = new TreeMap<>();
+		for (PluginStatistics statistics : getPluginStatistics()) {
+			pluginMap.put(statistics.getPlugin(), statistics.toMap());
+		}
+		m.put("plugins", pluginMap);
+		m.put("inactiveLazyPlugins", getInactiveLazyPlugins());
+		return m;
+	}
+	
+	static final class PluginCounters {
+		
+		final String id;
+		final LongAdder sent = new LongAdder();
+		/* Вызовы снятых слушателей, вызовы остальных считаются в самих слушателях */
+		final LongAdder invocations = new LongAdder();
+		final LongAdder invocationNanos = new LongAdder();
+		
+		PluginCounters(String id) {
+			this.id = id;
+		}
+		
+	}
+	
+	private static final class InstrumentedListener implements BatchMessageListener {
+		
+		private final PluginCounters plugin;
+		private final String tag;
+		private final MessageListener listener;
+		private final LatencyHistogram histogram = new LatencyHistogram();
+		private final LongAdder invocations = new LongAdder();
+		/* Счётчик для выбора замеряемых вызовов, потерянные при гонке увеличения не важны */
+		private int calls = 0;
+		
+		InstrumentedListener(PluginCounters plugin, String tag, MessageListener listener) {
+			this.plugin = plugin;
+			this.tag = tag;
+			this.listener = listener;
+		}
+		
+		@Override
+		public void handleMessage(String sender, String tag, Object data) {
+			invocations.increment();
+			if ((calls++ & (TIMING_INTERVAL - 1)) != 0) {
+				listener.handleMessage(sender, tag, data);
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				listener.handleMessage(sender, tag, data);
+			} finally {
+				record(System.nanoTime() - start);
+			}
+		}
+		
+		@Override
+		public void handleBatch(String sender, String tag, List<Object> batch) {
+			invocations.increment();
+			if ((calls++ & (TIMING_INTERVAL - 1)) != 0) {
+				PluginManager.deliverBatch(listener, sender, tag, batch);
+				return;
+			}
+			long start = System.nanoTime();
+			try {
+				PluginManager.deliverBatch(listener, sender, tag, batch);
+			} finally {
+				record(System.nanoTime() - start);
+			}
+		}
+		
+		/* Замеренный вызов представляет TIMING_INTERVAL вызовов в сумме времени плагина */
+		private void record(long nanos) {
+			histogram.record(nanos);
+			plugin.invocationNanos.add(nanos * TIMING_INTERVAL);
+		}
+		
+		@Override
+		public String toString() {
+			return listener.toString();
+		}
+		
+	}
+	
+	/**
+	 * Invocation count of a listener and the latency of its timed invocations.
+	 */
+	public static final class ListenerStatistics {
+		
+		private final String plugin;
+		private final String tag;
+		private final String listener;
+		private final long count;
+		private final double meanNanos;
+		private final long p50Nanos;
+		private final long p99Nanos;
+		private final long maxNanos;
+		
+		private ListenerStatistics(InstrumentedListener instrumented) {
+			LatencyHistogram histogram = instrumented.histogram;
+			plugin = instrumented.plugin.id;
+			tag = instrumented.tag;
+			listener = instrumented.listener.getClass().getName();
+			count = instrumented.invocations.sum();
+			meanNanos = histogram.getMean();
+			p50Nanos = histogram.getValueAtPercentile(50);
+			p99Nanos = histogram.getValueAtPercentile(99);
+			maxNanos = histogram.getMax();
+		}
+		
+		public String getPlugin() {
+			return plugin;
+		}
+		
+		public String getTag() {
+			return tag;
+		}
+		
+		public String getListener() {
+			return listener;
+		}
+		
+		public long getCount() {
+			return count;
+		}
+		
+		public double getMeanNanos() {
+			return meanNanos;
+		}
+		
+		public long getP50Nanos() {
+			return p50Nanos;
+		}
+		
+		public long getP99Nanos() {
+			return p99Nanos;
+		}
+		
+		public long getMaxNanos() {
+			return maxNanos;
+		}
+		
+		Map<String, Object> toMap() {
+			Map<String, Object> m = new HashMap<>();
+			m.put("plugin", plugin);
+			m.put("tag", tag);
+			m.put("listener", listener);
+			m.put("count", count);
+			m.put("meanNanos", meanNanos);
+			m.put("p50Nanos", p50Nanos);
+			m.put("p99Nanos", p99Nanos);
+			m.put("maxNanos", maxNanos);
+			return m;
+		}
+		
+	}
+	
+	public static final class PluginStatistics {
+		
+		private final String plugin;
+		private final long sent;
+		private final long invocations;
+		private final long invocationNanos;
+		
+		private PluginStatistics(PluginCounters counters, long invocations) {
+			plugin = counters.id;
+			sent = counters.sent.sum();
+			this.invocations = invocations;
+			invocationNanos = counters.invocationNanos.sum();
+		}
+		
+		public String getPlugin() {
+			return plugin;
+		}
+		
+		public long getSentMessages() {
+			return sent;
+		}
+		
+		public long getInvocations() {
+			return invocations;
+		}
+		
+		/**
+		 * Time spent in listeners of the plugin, estimated from the timed invocations.
+		 */
+		public long getInvocationNanos() {
+			return invocationNanos;
+		}
+		
+		Map<String, Object> toMap() {
+			Map<String, Object> m = new HashMap<>();
+			m.put("sent", sent);
+			m.put("invocations", invocations);
+			m.put("invocationNanos", invocationNanos);
+			return m;
+		}
+		
+	}
+	
+}
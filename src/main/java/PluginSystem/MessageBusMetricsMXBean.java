@@ -0,0 +1,34 @@
+package PluginSystem;
+
+import java.util.List;
+import java.util.Map;
+
+/**
+ * JMX view of the message bus metrics, registered as "ru.yadev.minachan:type=MessageBus".
+ */
+public interface MessageBusMetricsMXBean {
+	
+	long getPublishedMessages();
+	
+	/**
+	 * Messages without any listener.
+	 */
+	long getUnroutedMessages();
+	
+	/**
+	 * Publish rate over the last sampled second.
+	 */
+	double getMessagesPerSecond();
+	
+	Map<String, Long> getTagPublishCounts();
+	
+	List<MessageBusMetrics.ListenerStatistics> getListenerStatistics();
+	
+	List<MessageBusMetrics.PluginStatistics> getPluginStatistics();
+	
+	/**
+	 * Plugins with activation tags that have not received any message yet.
+	 */
+	List<String> getInactiveLazyPlugins();
+	
+}
@@ -0,0 +1,293 @@
+package PluginSystem;
+
+import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.LongAdder;
+import java.util.function.BiConsumer;
+import java.util.function.Consumer;
+
+/**
+ * Compiled dispatch table of the message bus.
+ * Every tag is interned to a small integer ID on first registration, listeners of a tag
+ * are stored as a copy-on-write array in a dense table indexed by that ID.
+ * Dispatch only needs one lookup of the (cached) tag hash and then walks a plain array.
+ *
+ * Pattern subscriptions ("gui-events:*", "core-events:**") live in a {@link TagTrie}.
+ * For each concrete tag with exact or matching pattern listeners the table caches the
+ * resolved array, which is rebuilt whenever a registration that affects the tag changes, so
+ * patterns cost nothing at dispatch time. Published tags that no pattern matches are not
+ * interned, only remembered in a bounded set until the patterns change.
+ *
+ * Readers never lock. Registration changes are rare and serialized by the table.
+ */
+final class MessageDispatchTable {
+
+	static final MessageListener[] NO_LISTENERS = new MessageListener[0];
+	private static final int INITIAL_CAPACITY = 64;
+	private static final int MAX_UNMATCHED_TAGS = 1024;
+
+	private final Map<String, Integer> tagIds = new ConcurrentHashMap<>();
+	private final TagTrie patterns = new TagTrie();
+	private volatile boolean hasPatterns = false;
+	/* Опубликованные теги без подписчиков, которым не подходит ни один шаблон */
+	private final Set<String> unmatchedTags = ConcurrentHashMap.newKeySet();
+	private volatile Slot[] slots = new Slot[INITIAL_CAPACITY];
+	private volatile int tagCount = 0;
+
+	/**
+	 * Returns ID of the tag, registering it if the tag is seen for the first time.
+	 */
+	int intern(String tag) {
+		Integer id = tagIds.get(tag);
+		if (id != null) {
+			return id;
+		}
+		synchronized (this) {
+			id = tagIds.get(tag);
+			if (id != null) {
+				return id;
+			}
+			int newId = tagCount;
+			Slot[] current = slots;
+			if (newId == current.length) {
+				current = Arrays.copyOf(current, newId * 2);
+			}
+			Slot slot = new Slot(tag);
+			slot.resolved = resolve(slot);
+			current[newId] = slot;
+			slots = current;
+			tagCount = newId + 1;
+			tagIds.put(tag, newId);
+			return newId;
+		}
+	}
+
+	/**
+	 * Returns ID of the tag or -1 if nobody has ever subscribed to it.
+	 */
+	int lookup(String tag) {
+		Integer id = tagIds.get(tag);
+		return (id != null) ? id : -1;
+	}
+
+	MessageListener[] get(int id) {
+		Slot[] current = slots;
+		return (id >= 0 && id < current.length && current[id] != null) ? current[id].resolved : NO_LISTENERS;
+	}
+
+	/**
+	 * Listeners that should receive a message with this tag, including pattern subscribers.
+	 */
+	MessageListener[] get(String tag) {
+		Slot slot = slot(tag);
+		return (slot != null) ? slot.resolved : NO_LISTENERS;
+	}
+
+	/**
+	 * Slot of the tag or null if the tag has no listeners and never had any.
+	 */
+	Slot slot(String tag) {
+		Integer id = tagIds.get(tag);
+		if (id != null) {
+			return slots[id];
+		}
+		if (!hasPatterns || unmatchedTags.contains(tag)) {
+			return null;
+		}
+		return matchPatterns(tag);
+	}
+
+	/**
+	 * Interns a tag seen for the first time if some pattern matches it, so its resolved
+	 * listeners are cached, otherwise remembers that it has no listeners.
+	 */
+	private synchronized Slot matchPatterns(String tag) {
+		Integer id = tagIds.get(tag);
+		if (id != null) {
+			return slots[id];
+		}
+		Set<MessageListener> matched = new LinkedHashSet<>();
+		patterns.collect(tag, matched);
+		if (matched.isEmpty()) {
+			if (unmatchedTags.size() >= MAX_UNMATCHED_TAGS) {
+				unmatchedTags.clear();
+			}
+			unmatchedTags.add(tag);
+			return null;
+		}
+		return slots[intern(tag)];
+	}
+
+	Slot slot(int id) {
+		Slot[] current = slots;
+		return (id >= 0 && id < current.length) ? current[id] : null;
+	}
+
+	String getTag(int id) {
+		return slots[id].tag;
+	}
+
+	synchronized boolean add(String tag, MessageListener listener) {
+		if (TagTrie.isPattern(tag)) {
+			if (!patterns.add(tag, listener)) {
+				return false;
+			}
+			hasPatterns = true;
+			invalidateAll();
+			return true;
+		}
+		int id = intern(tag);
+		Slot slot = slots[id];
+		if (indexOf(slot.exact, listener) >= 0) {
+			return false;
+		}
+		MessageListener[] updated = Arrays.copyOf(slot.exact, slot.exact.length + 1);
+		updated[slot.exact.length] = listener;
+		slot.exact = updated;
+		slot.resolved = resolve(slot);
+		return true;
+	}
+
+	synchronized boolean remove(String tag, MessageListener listener) {
+		if (TagTrie.isPattern(tag)) {
+			if (!patterns.remove(tag, listener)) {
+				return false;
+			}
+			hasPatterns = !patterns.isEmpty();
+			invalidateAll();
+			return true;
+		}
+		int id = lookup(tag);
+		if (id < 0) {
+			return false;
+		}
+		Slot slot = slots[id];
+		int index = indexOf(slot.exact, listener);
+		if (index < 0) {
+			return false;
+		}
+		MessageListener[] updated;
+		if (slot.exact.length == 1) {
+			updated = NO_LISTENERS;
+		} else {
+			updated = new MessageListener[slot.exact.length - 1];
+			System.arraycopy(slot.exact, 0, updated, 0, index);
+			System.arraycopy(slot.exact, index + 1, updated, index, updated.length - index);
+		}
+		slot.exact = updated;
+		slot.resolved = resolve(slot);
+		return true;
+	}
+
+	/**
+	 * Replaces listeners of several tags at once. Every affected tag switches from its old
+	 * listeners to the new ones in a single step, so a concurrent message is delivered
+	 * either to the removed or to the added listeners, never to both or neither.
+	 */
+	synchronized void replace(Map<String, List<MessageListener>> removed, Map<String, List<MessageListener>> added) {
+		Set<String> tags = new LinkedHashSet<>(removed.keySet());
+		tags.addAll(added.keySet());
+		boolean patternsChanged = false;
+		List<Slot> changed = new ArrayList<>();
+		for (String tag : tags) {
+			List<MessageListener> toRemove = removed.getOrDefault(tag, Collections.emptyList());
+			List<MessageListener> toAdd = added.getOrDefault(tag, Collections.emptyList());
+			if (TagTrie.isPattern(tag)) {
+				for (MessageListener listener : toRemove) {
+					patternsChanged |= patterns.remove(tag, listener);
+				}
+				for (MessageListener listener : toAdd) {
+					patternsChanged |= patterns.add(tag, listener);
+				}
+				continue;
+			}
+			Slot slot = slots[intern(tag)];
+			Set<MessageListener> listeners = new LinkedHashSet<>(Arrays.asList(slot.exact));
+			listeners.removeAll(toRemove);
+			listeners.addAll(toAdd);
+			slot.exact = listeners.isEmpty() ? NO_LISTENERS : listeners.toArray(NO_LISTENERS);
+			changed.add(slot);
+		}
+		if (patternsChanged) {
+			hasPatterns = !patterns.isEmpty();
+			invalidateAll();
+		} else {
+			for (Slot slot : changed) {
+				slot.resolved = resolve(slot);
+			}
+		}
+	}
+
+	private void invalidateAll() {
+		unmatchedTags.clear();
+		int count = tagCount;
+		Slot[] current = slots;
+		for (int id = 0; id < count; ++id) {
+			current[id].resolved = resolve(current[id]);
+		}
+	}
+
+	private MessageListener[] resolve(Slot slot) {
+		if (patterns.isEmpty()) {
+			return slot.exact;
+		}
+		Set<MessageListener> resolved = new LinkedHashSet<>(Arrays.asList(slot.exact));
+		patterns.collect(slot.tag, resolved);
+		return resolved.isEmpty() ? NO_LISTENERS : resolved.toArray(NO_LISTENERS);
+	}
+
+	/**
+	 * Iterates over all tags and patterns that currently have at least one listener.
+	 */
+	synchronized void forEach(BiConsumer<String, MessageListener[]> consumer) {
+		int count = tagCount;
+		Slot[] current = slots;
+		for (int id = 0; id < count; ++id) {
+			if (current[id].exact.length > 0) {
+				consumer.accept(current[id].tag, current[id].exact);
+			}
+		}
+		patterns.forEach(consumer);
+	}
+
+	/**
+	 * Iterates over all interned tags, with or without listeners.
+	 */
+	void forEachSlot(Consumer<Slot> consumer) {
+		int count = tagCount;
+		Slot[] current = slots;
+		for (int id = 0; id < count; ++id) {
+			consumer.accept(current[id]);
+		}
+	}
+
+	int size() {
+		return tagCount;
+	}
+
+	private static int indexOf(MessageListener[] array, MessageListener listener) {
+		for (int i = 0; i < array.length; ++i) {
+			if (array[i].equals(listener)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	static final class Slot {
+
+		final String tag;
+		/* Подписчики на точный тег, изменяются только под блокировкой таблицы */
+		MessageListener[] exact = NO_LISTENERS;
+		/* Подписчики на точный тег и на подходящие шаблоны */
+		volatile MessageListener[] resolved = NO_LISTENERS;
+		/* Количество опубликованных сообщений с этим тегом */
+		final LongAdder published = new LongAdder();
+
+		Slot(String tag) {
+			this.tag = tag;
+		}
+
+	}
+
+}
@@ -0,0 +1,268 @@
+package PluginSystem;
+
+import java.io.IOException;
+import java.nio.file.Path;
+import java.util.*;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Loads a set of plugins in two phases. Plugins are compiled concurrently on a bounded pool
+ * and then initialized one by one on the calling thread, in an order that puts dependencies
+ * declared in {@link PluginManifest} first and is otherwise alphabetical, so the order does
+ * not depend on which compilation finishes first.
+ */
+public final class ParallelPluginLoader {
+	
+	private final PluginManager pluginManager;
+	private final int parallelism;
+	
+	public ParallelPluginLoader(PluginManager pluginManager, int parallelism) {
+		if (parallelism < 1) {
+			throw new IllegalArgumentException("Parallelism must be positive: " + parallelism);
+		}
+		this.pluginManager = pluginManager;
+		this.parallelism = parallelism;
+	}
+	
+	/**
+	 * Number of compiler threads, -Dminachan.loader.threads or the number of processors.
+	 */
+	public static int defaultParallelism() {
+		return Integer.getInteger("minachan.loader.threads", Runtime.getRuntime().availableProcessors());
+	}
+	
+	public List<Result> load(Collection<Path> paths) {
+		long start = System.nanoTime();
+		Map<String, Result> results = new TreeMap<>();
+		for (Path path : paths) {
+			Result result = new Result(path);
+			try {
+				result.manifest = PluginManifest.load(path);
+			} catch (IOException e) {
+				result.fail(e);
+			}
+			if (results.putIfAbsent(result.id, result) != null) {
+				PluginManager.log("Duplicate plugin " + result.id + " at " + path + " skipped");
+			}
+		}
+		
+		AtomicInteger threadCounter = new AtomicInteger();
+		ExecutorService pool = Executors.newFixedThreadPool(Math.max(1, Math.min(parallelism, results.size())),
+				new ThreadFactory() {
+			@Override
+			public Thread newThread(Runnable runnable) {
+				Thread thread = new Thread(runnable, "plugin-compiler-" + threadCounter.incrementAndGet());
+				thread.setDaemon(true);
+				return thread;
+			}
+		});
+		try {
+			for (Result result : results.values()) {
+				if (result.error == null && !result.isLazy()) {
+					result.compiled = pool.submit(() -> compile(result));
+				}
+			}
+			for (Result result : order(results)) {
+				initialize(result);
+			}
+		} finally {
+			pool.shutdownNow();
+		}
+		
+		int loaded = 0;
+		for (Result result : results.values()) {
+			if (result.loaded || (result.isLazy() && result.error == null)) {
+				loaded++;
+			}
+		}
+		PluginManager.log("Loaded " + loaded + " of " + results.size() + " plugins in " +
+				(System.nanoTime() - start) / 1000000 + " ms using " + parallelism + " threads");
+		return new ArrayList<>(results.values());
+	}
+	
+	private Plugin compile(Result result) throws Exception {
+		PluginLoader loader = pluginManager.findLoader(result.path);
+		if (loader == null) {
+			throw new Exception("Could not match loader for plugin " + result.path);
+		}
+		long start = System.nanoTime();
+		try {
+			return loader.compile(result.path, result.manifest);
+		} catch (Exception | Error e) {
+			throw e;
+		} catch (Throwable e) {
+			throw new ExecutionException(e);
+		} finally {
+			result.compileNanos = System.nanoTime() - start;
+		}
+	}
+	
+	/**
+	 * Topological order of the plugins. Ready plugins are taken alphabetically.
+	 * Plugins with dependencies that are neither loaded nor in this set, or that are in
+	 * a dependency cycle, are marked as failed and are not returned.
+	 */
+	private List<Result> order(Map<String, Result> results) {
+		Map<String, Integer> waiting = new HashMap<>();
+		Map<String, List<String>> dependents = new HashMap<>();
+		TreeSet<String> ready = new TreeSet<>();
+		for (Result result : results.values()) {
+			if (result.error != null) {
+				continue;
+			}
+			int count = 0;
+			for (String dependency : result.manifest.getDependencies()) {
+				if (results.containsKey(dependency)) {
+					dependents.computeIfAbsent(dependency, k -> new ArrayList<>()).add(result.id);
+					count++;
+				} else if (!pluginManager.isPluginAvailable(dependency)) {
+					result.fail(new Exception("Missing dependency " + dependency));
+				}
+			}
+			waiting.put(result.id, count);
+			if (count == 0) {
+				ready.add(result.id);
+			}
+		}
+		List<Result> order = new ArrayList<>();
+		while (!ready.isEmpty()) {
+			String id = ready.pollFirst();
+			order.add(results.get(id));
+			for (String dependent : dependents.getOrDefault(id, Collections.emptyList())) {
+				if (waiting.merge(dependent, -1, Integer::sum) == 0) {
+					ready.add(dependent);
+				}
+			}
+		}
+		for (Map.Entry<String, Integer> entry : waiting.entrySet()) {
+			if (entry.getValue() > 0) {
+				results.get(entry.getKey()).fail(new Exception("Dependency cycle"));
+			}
+		}
+		return order;
+	}
+	
+	private void initialize(Result result) {
+		if (result.error != null) {
+			report(result);
+			return;
+		}
+		for (String dependency : result.manifest.getDependencies()) {
+			if (!pluginManager.isPluginAvailable(dependency)) {
+				result.fail(new Exception("Dependency " + dependency + " is not loaded"));
+				report(result);
+				return;
+			}
+		}
+		if (result.isLazy()) {
+			PluginLoader loader = pluginManager.findLoader(result.path);
+			if (loader == null) {
+				result.fail(new Exception("Could not match loader for plugin " + result.path));
+			} else {
+				pluginManager.registerLazyPlugin(result.path, result.manifest, loader);
+			}
+			report(result);
+			return;
+		}
+		Plugin plugin;
+		try {
+			plugin = result.compiled.get();
+		} catch (ExecutionException e) {
+			result.fail(e.getCause());
+			report(result);
+			return;
+		} catch (InterruptedException e) {
+			Thread.currentThread().interrupt();
+			result.fail(e);
+			return;
+		}
+		long start = System.nanoTime();
+		try {
+			if (plugin != null) {
+				result.loaded = pluginManager.initializePlugin(result.id, plugin);
+			} else {
+				pluginManager.loadPluginByPath(result.path);
+				result.loaded = pluginManager.isPluginLoaded(result.id);
+			}
+		} catch (Throwable e) {
+			result.fail(e);
+		}
+		result.initNanos = System.nanoTime() - start;
+		report(result);
+	}
+	
+	private static void report(Result result) {
+		if (result.error != null) {
+			PluginManager.log("Could not load plugin " + result.id + ": " + result.error);
+		} else if (result.isLazy()) {
+			PluginManager.log("Plugin " + result.id + " will be activated by " + result.manifest.getList("activationTags"));
+		} else if (result.loaded) {
+			PluginManager.log("Loaded plugin " + result.id + ": compile " + result.compileNanos / 1000000 +
+					" ms, init " + result.initNanos / 1000000 + " ms");
+		}
+	}
+	
+	public static final class Result {
+		
+		private final Path path;
+		private final String id;
+		private PluginManifest manifest = null;
+		private Future<Plugin> compiled = null;
+		private volatile long compileNanos = 0;
+		private long initNanos = 0;
+		private boolean loaded = false;
+		private Throwable error = null;
+		
+		private Result(Path path) {
+			this.path = path;
+			this.id = path.getFileName().toString();
+		}
+		
+		private void fail(Throwable e) {
+			if (error == null) {
+				error = e;
+			}
+		}
+		
+		public String getId() {
+			return id;
+		}
+		
+		public Path getPath() {
+			return path;
+		}
+		
+		public long getCompileNanos() {
+			return compileNanos;
+		}
+		
+		public long getInitNanos() {
+			return initNanos;
+		}
+		
+		public boolean isLoaded() {
+			return loaded;
+		}
+		
+		/**
+		 * Plugin declares activation tags and is compiled on the first message with them.
+		 */
+		public boolean isLazy() {
+			return manifest != null && !manifest.getList("activationTags").isEmpty();
+		}
+		
+		/**
+		 * Reason why the plugin was not loaded or null.
+		 */
+		public Throwable getError() {
+			return error;
+		}
+		
+	}
+	
+}
@@ -8,4 +8,13 @@ public interface PluginLoader {
 	
 	void loadByPath(Path path) throws Throwable;
 	
+	/**
+	 * Compile phase of loading: prepares the plugin without initializing it, so that
+	 * several plugins can be compiled concurrently. Must be thread-safe.
+	 * Loaders that return null are loaded by {@link #loadByPath} in the initialization phase.
+	 */
+	default Plugin compile(Path path, PluginManifest manifest) throws Throwable {
+		return null;
+	}
+	
 }
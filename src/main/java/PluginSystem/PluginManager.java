@@ -3,10 +3,14 @@ package PluginSystem;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.lang.reflect.InvocationTargetException;
+import java.nio.file.DirectoryStream;
 import java.nio.file.Files;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.*;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PluginManager {
 	public Path userDir = null;
@@ -14,10 +18,17 @@ public class PluginManager {
 	public Path dataDir = null;
 	public Path assetDir = null;
 	private static final PluginManager instance = new PluginManager();
-	private final Map<String, PluginProxy> plugins = new HashMap<>();
-	private final Map<String, Set<MessageListener>> messageListeners = new HashMap<>();
-	private final List<PluginLoader> loaders = new ArrayList<>();
+	private final Map<String, PluginProxy> plugins = new ConcurrentHashMap<>();
+	private final Set<String> initializingPlugins = ConcurrentHashMap.newKeySet();
+	private final Map<String, LazyPlugin> lazyPlugins = new ConcurrentHashMap<>();
+	private final MessageDispatchTable messageListeners = new MessageDispatchTable();
+	private final MessageBusMetrics metrics = new MessageBusMetrics(messageListeners);
+	private final List<PluginLoader> loaders = new CopyOnWriteArrayList<>();
+	private final JarPluginLoader jarPluginLoader = new JarPluginLoader(this);
+	private PluginWatcher pluginWatcher = null;
 	private static OutputStream logStream = null;
+	private static final AtomicLong correlationIds = new AtomicLong();
+	private static final ThreadLocal<DeliveryContext> deliveryContext = ThreadLocal.withInitial(DeliveryContext::new);
 	private PluginManager(){}
 	public static PluginManager getInstance() {
 		return instance;
@@ -42,6 +53,17 @@ public class PluginManager {
 		if(!Files.isDirectory(this.assetDir))
 			this.dataDir.toFile().mkdirs();
 
+		if (MessageBusMetrics.ENABLED) {
+			metrics.start();
+		}
+
+		// Загрузчик jar-плагинов
+		if (!loaders.contains(jarPluginLoader)) {
+			registerPluginLoader(jarPluginLoader);
+			registerMessageListener("core-events:plugin-unload", (sender, tag, data) -> jarPluginLoader.release(data.toString()));
+			registerMessageListener("core-events:plugin-reload", (sender, tag, data) -> jarPluginLoader.releasePreviousVersions(data.toString()));
+		}
+
 		// Загрузка плагина "Ядро"
 		loadPluginByClass(CorePlugin.class);
 	}
@@ -56,7 +78,13 @@ public class PluginManager {
 	}
 
 	public boolean initializePlugin(String id, Plugin plugin) {
-		if (!plugins.containsKey(id)) {
+		if (plugins.containsKey(id) || !initializingPlugins.add(id)) {
+			return false;
+		}
+		try {
+			if (plugins.containsKey(id)) {
+				return false;
+			}
 			PluginProxy pluginProxy = new PluginProxy(plugin);
 			if (pluginProxy.initialize(id)) {
 				plugins.put(id, pluginProxy);
@@ -64,61 +92,301 @@ public class PluginManager {
 				sendMessage("core", "core-events:plugin-load", id);
 				return true;
 			}
+		} finally {
+			initializingPlugins.remove(id);
 		}
 		return false;
 	}
 	
+	/**
+	 * Инициализация плагина с отложенной активацией: его слушатели регистрируются позже,
+	 * вместо заглушки (см. {@link LazyPlugin})
+	 */
+	PluginProxy activateLazyPlugin(String id, Plugin plugin) {
+		if (plugins.containsKey(id) || !initializingPlugins.add(id)) {
+			return null;
+		}
+		try {
+			PluginProxy pluginProxy = new PluginProxy(plugin, true);
+			if (!pluginProxy.initialize(id)) {
+				pluginProxy.discard();
+				return null;
+			}
+			plugins.put(id, pluginProxy);
+			log("Registered plugin: " + id);
+			sendMessage("core", "core-events:plugin-load", id);
+			return pluginProxy;
+		} finally {
+			initializingPlugins.remove(id);
+		}
+	}
+	
+	/**
+	 * Регистрирует заглушку плагина, который объявил свои теги в манифесте (activationTags)
+	 */
+	void registerLazyPlugin(Path path, PluginManifest manifest, PluginLoader loader) {
+		LazyPlugin lazyPlugin = new LazyPlugin(this, path, manifest, loader, manifest.getList("activationTags"));
+		if (lazyPlugins.putIfAbsent(manifest.getId(), lazyPlugin) != null) {
+			return;
+		}
+		metrics.lazyPluginRegistered(manifest.getId());
+		lazyPlugin.register();
+		log("Registered lazy plugin: " + manifest.getId());
+	}
+	
+	/**
+	 * Плагин загружен или будет активирован первым сообщением
+	 */
+	boolean isPluginAvailable(String id) {
+		if (plugins.containsKey(id)) {
+			return true;
+		}
+		LazyPlugin lazyPlugin = lazyPlugins.get(id);
+		return lazyPlugin != null && (lazyPlugin.getState() == LazyPlugin.State.INACTIVE ||
+				lazyPlugin.getState() == LazyPlugin.State.ACTIVATING);
+	}
+	
 	void unregisterPlugin(PluginProxy pluginProxy) {
-		plugins.remove(pluginProxy.getId());
+		plugins.remove(pluginProxy.getId(), pluginProxy);
+		if (lazyPlugins.remove(pluginProxy.getId()) != null) {
+			metrics.lazyPluginRemoved(pluginProxy.getId());
+		}
 		log("Unregistered plugin: " + pluginProxy.getId());
 		sendMessage("core", "core-events:plugin-unload", pluginProxy.getId());
 	}
 	
 	void sendMessage(String sender, String tag, Object data) {
-		Set<MessageListener> listeners = messageListeners.getOrDefault(tag, null);
-		if (listeners != null) {
+		dispatch(listenersOf(tag, 1), sender, tag, data, 0);
+	}
+	
+	/**
+	 * Отправка сообщения с ID корреляции запроса, который передаётся вне данных сообщения
+	 */
+	void sendMessage(String sender, String tag, Object data, long correlationId) {
+		dispatch(listenersOf(tag, 1), sender, tag, data, correlationId);
+	}
+	
+	/**
+	 * Отправка пачки сообщений с одним тегом: слушатели ищутся один раз на всю пачку,
+	 * {@link BatchMessageListener} получает пачку целиком, остальные - по одному сообщению
+	 */
+	void sendBatch(String sender, String tag, List<Object> batch) {
+		if (batch.isEmpty()) {
+			return;
+		}
+		MessageListener[] listeners = listenersOf(tag, batch.size());
+		if (listeners.length == 0) {
+			return;
+		}
+		// Копия: пачка может доставляться асинхронно, а отправитель - переиспользовать список
+		List<Object> items = Collections.unmodifiableList(new ArrayList<>(batch));
+		DeliveryContext context = deliveryContext.get();
+		String previousSender = context.sender;
+		long previousCorrelationId = context.correlationId;
+		context.sender = sender;
+		context.correlationId = 0;
+		try {
 			for (MessageListener listener : listeners) {
+				deliverBatch(listener, sender, tag, items);
+			}
+		} finally {
+			context.sender = previousSender;
+			context.correlationId = previousCorrelationId;
+		}
+	}
+	
+	static void deliverBatch(MessageListener listener, String sender, String tag, List<Object> batch) {
+		if (listener instanceof BatchMessageListener) {
+			((BatchMessageListener) listener).handleBatch(sender, tag, batch);
+		} else {
+			for (Object data : batch) {
 				listener.handleMessage(sender, tag, data);
 			}
 		}
 	}
 	
-	void registerMessageListener(String tag, MessageListener listener) {
-		Set<MessageListener> listeners = messageListeners.getOrDefault(tag, null);
-		if (listeners == null) {
-			listeners = new HashSet<>();
-			messageListeners.put(tag, listeners);
+	/**
+	 * Отправка сообщения по заранее полученному ID тега (см. {@link #getTagId(String)})
+	 */
+	void sendMessage(String sender, int tagId, Object data) {
+		sendMessage(sender, tagId, data, 0);
+	}
+	
+	/**
+	 * Отправка по ID тега с ID корреляции запроса, например при пересылке запроса альтернативе
+	 */
+	void sendMessage(String sender, int tagId, Object data, long correlationId) {
+		MessageDispatchTable.Slot slot = messageListeners.slot(tagId);
+		if (slot == null) {
+			return;
+		}
+		if (MessageBusMetrics.ENABLED) {
+			metrics.recordPublish(slot, 1);
+		}
+		dispatch(slot.resolved, sender, slot.tag, data, correlationId);
+	}
+	
+	private MessageListener[] listenersOf(String tag, int messageCount) {
+		MessageDispatchTable.Slot slot = messageListeners.slot(tag);
+		if (MessageBusMetrics.ENABLED) {
+			metrics.recordPublish(slot, messageCount);
+		}
+		return (slot != null) ? slot.resolved : MessageDispatchTable.NO_LISTENERS;
+	}
+	
+	MessageBusMetrics getMetrics() {
+		return metrics;
+	}
+	
+	/**
+	 * Снимок метрик шины вместе с очередями и запросами плагинов
+	 */
+	Map<String, Object> queryMetrics() {
+		Map<String, Object> result = metrics.toMap();
+		Map<String, Object> pluginMap = new TreeMap<>();
+		for (Map.Entry<String, PluginProxy> entry : plugins.entrySet()) {
+			PluginProxy proxy = entry.getValue();
+			Map<String, Object> m = new HashMap<>();
+			LazyPlugin lazyPlugin = lazyPlugins.get(entry.getKey());
+			if (lazyPlugin != null) {
+				m.put("activationMillis", lazyPlugin.getActivationNanos() / 1000000);
+			}
+			m.put("pendingRequests", proxy.getPendingRequestCount());
+			m.put("timedOutRequests", proxy.getTimedOutRequestCount());
+			Mailbox mailbox = proxy.getMailbox();
+			if (mailbox != null) {
+				m.put("queueDepth", mailbox.getQueueDepth());
+				m.put("maxQueueDepth", mailbox.getMaxQueueDepth());
+				m.put("delivered", mailbox.getDeliveredCount());
+				m.put("dropped", mailbox.getDroppedCount());
+				m.put("averageQueueLatencyNanos", mailbox.getAverageLatencyNanos());
+			}
+			pluginMap.put(entry.getKey(), m);
+		}
+		result.put("proxies", pluginMap);
+		result.put("jarPlugins", jarPluginLoader.getStatistics());
+		return result;
+	}
+	
+	private static void dispatch(MessageListener[] listeners, String sender, String tag, Object data,
+	                             long correlationId) {
+		if (listeners.length == 0) {
+			return;
+		}
+		DeliveryContext context = deliveryContext.get();
+		if (correlationId == 0 && context.correlationId == 0) {
+			for (MessageListener listener : listeners) {
+				listener.handleMessage(sender, tag, data);
+			}
+			return;
+		}
+		String previousSender = context.sender;
+		long previousCorrelationId = context.correlationId;
+		context.sender = sender;
+		context.correlationId = correlationId;
+		try {
+			for (MessageListener listener : listeners) {
+				listener.handleMessage(sender, tag, data);
+			}
+		} finally {
+			context.sender = previousSender;
+			context.correlationId = previousCorrelationId;
+		}
+	}
+	
+	/**
+	 * Вызов одного слушателя с восстановлением контекста доставки (используется отложенной доставкой)
+	 */
+	static void deliver(MessageListener listener, String sender, String tag, Object data, long correlationId) {
+		DeliveryContext context = deliveryContext.get();
+		if (correlationId == 0 && context.correlationId == 0) {
+			listener.handleMessage(sender, tag, data);
+			return;
+		}
+		String previousSender = context.sender;
+		long previousCorrelationId = context.correlationId;
+		context.sender = sender;
+		context.correlationId = correlationId;
+		try {
+			listener.handleMessage(sender, tag, data);
+		} finally {
+			context.sender = previousSender;
+			context.correlationId = previousCorrelationId;
 		}
-		if (tag.equals("core-events:plugin-load")) {
+	}
+	
+	static long nextCorrelationId() {
+		return correlationIds.incrementAndGet();
+	}
+	
+	/**
+	 * ID корреляции сообщения, которое сейчас обрабатывается в этом потоке, или 0
+	 */
+	static long currentCorrelationId() {
+		return deliveryContext.get().correlationId;
+	}
+	
+	/**
+	 * Если сообщение с тегом tag является ответом отправителю обрабатываемого запроса,
+	 * возвращает ID корреляции этого запроса, иначе 0
+	 */
+	static long replyCorrelationId(String tag) {
+		DeliveryContext context = deliveryContext.get();
+		return (context.correlationId != 0 && tag.equals(context.sender)) ? context.correlationId : 0;
+	}
+	
+	/**
+	 * Возвращает постоянный ID тега, регистрируя тег при первом обращении
+	 */
+	int getTagId(String tag) {
+		return messageListeners.intern(tag);
+	}
+	
+	void registerMessageListener(String tag, MessageListener listener) {
+		replayPluginLoad(tag, listener);
+		messageListeners.add(tag, listener);
+	}
+	
+	private void replayPluginLoad(String tag, MessageListener listener) {
+		if (tag.equals("core-events:plugin-load") ||
+				(TagTrie.isPattern(tag) && TagTrie.matches(tag, "core-events:plugin-load"))) {
 			for (String id : plugins.keySet()) {
 				listener.handleMessage("core", "core-events:plugin-load", id);
 			}
 		}
-		listeners.add(listener);
+	}
+	
+	/**
+	 * Атомарная для каждого тега замена слушателей (используется при перезагрузке плагина)
+	 */
+	void replaceMessageListeners(Map<String, List<MessageListener>> removed, Map<String, List<MessageListener>> added) {
+		for (Map.Entry<String, List<MessageListener>> entry : added.entrySet()) {
+			List<MessageListener> previous = removed.getOrDefault(entry.getKey(), Collections.emptyList());
+			if (previous.isEmpty()) {
+				for (MessageListener listener : entry.getValue()) {
+					replayPluginLoad(entry.getKey(), listener);
+				}
+			}
+		}
+		messageListeners.replace(removed, added);
 	}
 
 	/**
 	 * Отображает все зарегистрированные Listeners
 	 */
 	public void getMessageListeners(){
-		messageListeners.forEach((k, v) -> System.out.println((k + ":" + v)));
+		messageListeners.forEach((k, v) -> System.out.println((k + ":" + Arrays.toString(v))));
 	}
 	
 	void unregisterMessageListener(String tag, MessageListener listener) {
-		Set<MessageListener> listeners = messageListeners.getOrDefault(tag, null);
-		if (listeners != null) {
-			listeners.remove(listener);
-			if (listeners.size() == 0) {
-				messageListeners.remove(tag);
-			}
-		}
+		messageListeners.remove(tag, listener);
 	}
 	
-	public synchronized void registerPluginLoader(PluginLoader loader) {
+	public void registerPluginLoader(PluginLoader loader) {
 		loaders.add(loader);
 	}
 	
-	public synchronized void unregisterPluginLoader(PluginLoader loader) {
+	public void unregisterPluginLoader(PluginLoader loader) {
 		loaders.remove(loader);
 	}
 	
@@ -132,6 +400,12 @@ public class PluginManager {
 			plugin.unload();
 			return true;
 		}
+		LazyPlugin lazyPlugin = lazyPlugins.get(name);
+		if (lazyPlugin != null && lazyPlugin.cancel()) {
+			lazyPlugins.remove(name, lazyPlugin);
+			metrics.lazyPluginRemoved(name);
+			return true;
+		}
 		return false;
 	}
 	
@@ -164,14 +438,108 @@ public class PluginManager {
 		return loadPluginByClassName(packageName + ".PluginClass");
 	}
 	
-	public synchronized void loadPluginByPath(Path path) throws Throwable {
+	PluginLoader findLoader(Path path) {
 		for (PluginLoader loader : loaders) {
 			if (loader.matchPath(path)) {
-				loader.loadByPath(path);
-				return;
+				return loader;
 			}
 		}
-		throw new Exception("Could not match loader for plugin " + path.toString());
+		return null;
+	}
+	
+	boolean isPluginLoaded(String id) {
+		return plugins.containsKey(id);
+	}
+	
+	public synchronized void loadPluginByPath(Path path) throws Throwable {
+		PluginLoader loader = findLoader(path);
+		if (loader == null) {
+			throw new Exception("Could not match loader for plugin " + path.toString());
+		}
+		loader.loadByPath(path);
+	}
+	
+	/**
+	 * Перезагружает плагин, не теряя сообщений: новая версия компилируется и инициализируется,
+	 * пока работает старая, затем подписки старой версии заменяются подписками новой.
+	 * Альтернативы и ожидающие ответа запросы остаются за плагином, вместо
+	 * core-events:plugin-unload отправляется core-events:plugin-reload.
+	 * Если загрузчик не умеет компилировать отдельно, плагин просто выгружается и загружается
+	 */
+	public boolean reloadPlugin(Path path) throws Throwable {
+		PluginManifest manifest = PluginManifest.load(path);
+		String id = manifest.getId();
+		PluginLoader loader = findLoader(path);
+		if (loader == null) {
+			throw new Exception("Could not match loader for plugin " + path.toString());
+		}
+		PluginProxy previous = getPlugin(id);
+		if (previous == null) {
+			if (isPluginAvailable(id)) {
+				// Ещё не активирован: при активации будет скомпилирован новый код
+				return true;
+			}
+			return loadNewPlugin(path);
+		}
+		// Компиляция идёт без блокировок, старая версия продолжает работать
+		Plugin plugin = loader.compile(path, manifest);
+		synchronized (this) {
+			if (plugins.get(id) != previous) {
+				log("Plugin " + id + " changed during reload, reload skipped");
+				return false;
+			}
+			if (plugin == null) {
+				previous.unload();
+				return loadNewPlugin(path);
+			}
+			PluginProxy proxy = new PluginProxy(plugin, previous);
+			if (!proxy.initialize(id)) {
+				proxy.discard();
+				log("Could not initialize new version of plugin " + id + ", old version kept");
+				return false;
+			}
+			proxy.takeOver(previous);
+			plugins.put(id, proxy);
+		}
+		previous.retire();
+		log("Reloaded plugin: " + id);
+		sendMessage("core", "core-events:plugin-reload", id);
+		return true;
+	}
+	
+	/**
+	 * Загружает плагин так же, как при запуске: с проверкой зависимостей и с отложенной
+	 * активацией, если в манифесте есть activationTags
+	 */
+	private boolean loadNewPlugin(Path path) {
+		ParallelPluginLoader.Result result = new ParallelPluginLoader(this, 1).load(Collections.singletonList(path)).get(0);
+		return result.getError() == null && (result.isLoaded() || result.isLazy());
+	}
+	
+	/**
+	 * Следит за каталогом плагинов и перезагружает изменённые плагины
+	 */
+	public synchronized void watchPluginsDirectory() throws IOException {
+		if (pluginWatcher == null) {
+			pluginWatcher = new PluginWatcher(this, pluginsDir, PluginWatcher.defaultDebounceMillis());
+			pluginWatcher.start();
+		}
+	}
+	
+	/**
+	 * Загружает все плагины каталога: компиляция идёт параллельно, инициализация -
+	 * по порядку с учётом зависимостей из plugin.properties
+	 */
+	public List<ParallelPluginLoader.Result> loadPluginsFromDirectory(Path dir) throws IOException {
+		List<Path> paths = new ArrayList<>();
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(dir)) {
+			for (Path path : directoryStream) {
+				if (findLoader(path) != null) {
+					paths.add(path);
+				}
+			}
+		}
+		return new ParallelPluginLoader(this, ParallelPluginLoader.defaultParallelism()).load(paths);
 	}
 	
 	public boolean tryLoadPluginByPath(Path path) {
@@ -185,6 +553,10 @@ public class PluginManager {
 	}
 	
 	public void loadPluginByName(String name) throws Throwable {
+		if (pluginsDir != null && Files.exists(pluginsDir.resolve(name))) {
+			loadPluginByPath(pluginsDir.resolve(name));
+			return;
+		}
 		Path jarPath = Paths.get(getClass().getProtectionDomain().getCodeSource().getLocation().toURI());
 		Path pluginsDirPath;
 		if (Files.isDirectory(jarPath)) {
@@ -206,6 +578,16 @@ public class PluginManager {
 	}
 	
 	void quit() {
+		synchronized (this) {
+			if (pluginWatcher != null) {
+				try {
+					pluginWatcher.close();
+				} catch (IOException e) {
+					log(e);
+				}
+				pluginWatcher = null;
+			}
+		}
 		List<PluginProxy> pluginsToUnload = new ArrayList<>();
 		for (Map.Entry<String, PluginProxy> entry : plugins.entrySet()) {
 			if (!entry.getKey().equals("core")) {
@@ -217,8 +599,14 @@ public class PluginManager {
 		}
 		pluginsToUnload.clear();
 		getPlugin("core").unload();
+		Utils.closeResourceFileSystems();
 		System.exit(0);
 	}
+	private static final class DeliveryContext {
+		String sender = null;
+		long correlationId = 0;
+	}
+	
 	/* Logging */
 
 	/** Log info to file and console.
@@ -0,0 +1,93 @@
+package PluginSystem;
+
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.InputStreamReader;
+import java.io.Reader;
+import java.nio.charset.StandardCharsets;
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Properties;
+import java.util.zip.ZipEntry;
+import java.util.zip.ZipFile;
+
+/**
+ * Optional description of a plugin read from "plugin.properties" in the plugin directory
+ * (or in the root of a jar plugin).
+ * Keys:
+ * dependencies - comma separated IDs of plugins that must be initialized before this one;
+ * compileStatic - true to compile a Groovy plugin statically;
+ * activationTags - comma separated tags (or patterns) the plugin handles; such a plugin is
+ * compiled and initialized only when the first message with one of them is sent.
+ */
+public final class PluginManifest {
+	
+	public static final String FILE_NAME = "plugin.properties";
+	
+	private final String id;
+	private final Properties properties;
+	private final List<String> dependencies;
+	
+	private PluginManifest(String id, Properties properties) {
+		this.id = id;
+		this.properties = properties;
+		this.dependencies = Collections.unmodifiableList(getList("dependencies"));
+	}
+	
+	/**
+	 * Reads the manifest of a plugin. Plugins without a manifest get an empty one.
+	 */
+	public static PluginManifest load(Path path) throws IOException {
+		Properties properties = new Properties();
+		Path file = Files.isDirectory(path) ? path.resolve(FILE_NAME) : null;
+		if (file != null && Files.isReadable(file)) {
+			try (Reader reader = Files.newBufferedReader(file, StandardCharsets.UTF_8)) {
+				properties.load(reader);
+			}
+		} else if (path.getFileName().toString().endsWith(".jar") && Files.isRegularFile(path)) {
+			try (ZipFile zipFile = new ZipFile(path.toFile())) {
+				ZipEntry entry = zipFile.getEntry(FILE_NAME);
+				if (entry != null) {
+					try (InputStream stream = zipFile.getInputStream(entry);
+					     Reader reader = new InputStreamReader(stream, StandardCharsets.UTF_8)) {
+						properties.load(reader);
+					}
+				}
+			}
+		}
+		return new PluginManifest(path.getFileName().toString(), properties);
+	}
+	
+	/**
+	 * ID of the plugin, which is the name of its file or directory.
+	 */
+	public String getId() {
+		return id;
+	}
+	
+	public List<String> getDependencies() {
+		return dependencies;
+	}
+	
+	public String getProperty(String key, String defaultValue) {
+		return properties.getProperty(key, defaultValue).trim();
+	}
+	
+	public boolean getBoolean(String key) {
+		return Boolean.parseBoolean(getProperty(key, "false"));
+	}
+	
+	public List<String> getList(String key) {
+		List<String> result = new ArrayList<>();
+		for (String item : getProperty(key, "").split(",")) {
+			if (!item.trim().isEmpty()) {
+				result.add(item.trim());
+			}
+		}
+		return result;
+	}
+	
+}
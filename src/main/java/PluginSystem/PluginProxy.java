@@ -1,21 +1,66 @@
 package PluginSystem;
 
 import java.nio.file.Path;
+import java.util.ArrayList;
 import java.util.HashMap;
-import java.util.HashSet;
+import java.util.List;
 import java.util.Map;
-import java.util.Set;
+import java.util.concurrent.CancellationException;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.TimeoutException;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
 
 public class PluginProxy implements MessageListener {
 	
+	private static final long RETIRE_TIMEOUT_MILLIS = 5000;
+	private static final HashedWheelTimer requestTimer =
+			new HashedWheelTimer("request-timeouts", 10, TimeUnit.MILLISECONDS, 512);
+	
 	private final Plugin plugin;
-	private String id = null;
-	private Map<String, Set<MessageListener>> messageListeners = new HashMap<>();
-	private Map<Object, ResponseListener> responseListeners = new HashMap<>();
-	private int seq = 0;
+	private volatile String id = null;
+	/* Для каждого тега: слушатель плагина -> слушатель, зарегистрированный в PluginManager */
+	private final Map<String, Map<MessageListener, MessageListener>> messageListeners = new ConcurrentHashMap<>();
+	private final Map<Object, ResponseListener> responseListeners;
+	private final AtomicInteger seq;
+	private final Map<Long, PendingRequest> pendingRequests;
+	private final AtomicLong timedOutRequests;
+	private volatile Mailbox mailbox = null;
+	private volatile MessageBusMetrics.PluginCounters counters = null;
+	/* Подписки новой версии перезагружаемого плагина копятся, пока она не заменит старую */
+	private boolean staged;
 	
 	PluginProxy(Plugin plugin) {
+		this(plugin, false);
+	}
+	
+	/**
+	 * Staged proxy registers listeners only when {@link #activate} is called, except its
+	 * own listener of replies, so requests sent during initialization get their replies.
+	 */
+	PluginProxy(Plugin plugin, boolean staged) {
 		this.plugin = plugin;
+		this.responseListeners = new ConcurrentHashMap<>();
+		this.seq = new AtomicInteger();
+		this.pendingRequests = new ConcurrentHashMap<>();
+		this.timedOutRequests = new AtomicLong();
+		this.staged = staged;
+	}
+	
+	/**
+	 * Proxy of a new version of a reloaded plugin. It shares the state of requests with the
+	 * old version, so replies to requests sent by the old version are not lost, and its
+	 * listeners are staged until {@link #takeOver} replaces the old version's listeners.
+	 */
+	PluginProxy(Plugin plugin, PluginProxy predecessor) {
+		this.plugin = plugin;
+		this.responseListeners = predecessor.responseListeners;
+		this.seq = predecessor.seq;
+		this.pendingRequests = predecessor.pendingRequests;
+		this.timedOutRequests = predecessor.timedOutRequests;
+		this.staged = true;
 	}
 	
 	public String getId() {
@@ -25,6 +70,9 @@ public class PluginProxy implements MessageListener {
 	public boolean initialize(String id) {
 		assert this.id == null;
 		this.id = id;
+		if (MessageBusMetrics.ENABLED) {
+			counters = PluginManager.getInstance().getMetrics().plugin(id);
+		}
 		addMessageListener(id, this);
 		return plugin.initialize(this);
 	}
@@ -32,18 +80,170 @@ public class PluginProxy implements MessageListener {
 	public void unload() {
 		assert id != null;
 		plugin.unload();
-		for (Map.Entry<String, Set<MessageListener>> entry: messageListeners.entrySet()) {
-			for (MessageListener listener : entry.getValue()) {
-				PluginManager.getInstance().unregisterMessageListener(entry.getKey(), listener);
+		unregisterMessageListeners();
+		if (mailbox != null) {
+			mailbox.close();
+		}
+		for (PendingRequest pending : pendingRequests.values()) {
+			pending.timeout.cancel();
+			pending.future.completeExceptionally(new CancellationException("Plugin " + id + " unloaded"));
+		}
+		pendingRequests.clear();
+		PluginManager.getInstance().unregisterPlugin(this);
+		id = null;
+	}
+	
+	private synchronized void unregisterMessageListeners() {
+		for (Map.Entry<String, Map<MessageListener, MessageListener>> entry: messageListeners.entrySet()) {
+			for (Map.Entry<MessageListener, MessageListener> listener : entry.getValue().entrySet()) {
+				if (!staged || isReplyListener(entry.getKey(), listener.getKey())) {
+					PluginManager.getInstance().unregisterMessageListener(entry.getKey(), listener.getValue());
+				}
+				PluginManager.getInstance().getMetrics().release(listener.getValue());
 			}
 		}
 		messageListeners.clear();
-		PluginManager.getInstance().unregisterPlugin(this);
+	}
+	
+	/**
+	 * Replaces the listeners of the old version of the plugin with the staged listeners of
+	 * this version, tag by tag without a moment when a tag has no listeners.
+	 */
+	void takeOver(PluginProxy predecessor) {
+		synchronized (predecessor) {
+			Map<String, List<MessageListener>> removed = predecessor.getRegisteredListeners();
+			activate(removed);
+			for (List<MessageListener> listeners : removed.values()) {
+				for (MessageListener listener : listeners) {
+					PluginManager.getInstance().getMetrics().release(listener);
+				}
+			}
+			predecessor.messageListeners.clear();
+		}
+	}
+	
+	/**
+	 * Registers the staged listeners in place of the given ones.
+	 */
+	synchronized void activate(Map<String, List<MessageListener>> replaced) {
+		PluginManager.getInstance().replaceMessageListeners(replaced, getRegisteredListeners());
+		staged = false;
+	}
+	
+	/**
+	 * Registered listeners of the plugin that receive messages with the tag.
+	 */
+	synchronized List<MessageListener> getListenersFor(String tag) {
+		List<MessageListener> result = new ArrayList<>();
+		for (Map.Entry<String, Map<MessageListener, MessageListener>> entry: messageListeners.entrySet()) {
+			if (entry.getKey().equals(tag) ||
+					(TagTrie.isPattern(entry.getKey()) && TagTrie.matches(entry.getKey(), tag))) {
+				result.addAll(entry.getValue().values());
+			}
+		}
+		return result;
+	}
+	
+	/**
+	 * Stops the old version of a reloaded plugin after {@link #takeOver}: messages already
+	 * queued for it are still delivered, requests stay with the new version.
+	 */
+	void retire() {
+		Mailbox mailbox = this.mailbox;
+		if (mailbox != null) {
+			try {
+				if (!mailbox.awaitDrained(RETIRE_TIMEOUT_MILLIS)) {
+					PluginManager.log(id, "Mailbox of the old version was not drained in " + RETIRE_TIMEOUT_MILLIS + " ms");
+				}
+			} catch (InterruptedException e) {
+				Thread.currentThread().interrupt();
+			}
+		}
+		plugin.unload();
+		if (mailbox != null) {
+			mailbox.close();
+		}
+		id = null;
+	}
+	
+	/**
+	 * Drops a new version of a plugin that failed to initialize during reload.
+	 */
+	void discard() {
+		plugin.unload();
+		unregisterMessageListeners();
+		if (mailbox != null) {
+			mailbox.close();
+		}
 		id = null;
 	}
 	
+	private Map<String, List<MessageListener>> getRegisteredListeners() {
+		Map<String, List<MessageListener>> result = new HashMap<>();
+		for (Map.Entry<String, Map<MessageListener, MessageListener>> entry: messageListeners.entrySet()) {
+			if (!entry.getValue().isEmpty()) {
+				result.put(entry.getKey(), new ArrayList<>(entry.getValue().values()));
+			}
+		}
+		return result;
+	}
+	
 	public void sendMessage(String tag, Object data) {
-		PluginManager.getInstance().sendMessage(id, tag, data);
+		countSent(1);
+		PluginManager.getInstance().sendMessage(id, tag, data, PluginManager.replyCorrelationId(tag));
+	}
+	
+	/**
+	 * Sends several messages with the same tag at once. Listeners implementing
+	 * {@link BatchMessageListener} receive the whole batch in one call, other listeners
+	 * receive the messages one by one.
+	 */
+	public void sendBatch(String tag, List<Object> batch) {
+		countSent(batch.size());
+		PluginManager.getInstance().sendBatch(id, tag, batch);
+	}
+	
+	/**
+	 * Sends a request and returns a future completed with the data of the reply.
+	 * The request is correlated with its reply by an ID passed alongside the message, so data
+	 * is sent as is. If nobody answers within the timeout, the future fails with
+	 * {@link TimeoutException} and the request is forgotten.
+	 */
+	public CompletableFuture<Object> request(String tag, Object data, long timeoutMillis) {
+		if (timeoutMillis <= 0) {
+			throw new IllegalArgumentException("Request timeout must be positive: " + timeoutMillis);
+		}
+		long correlationId = PluginManager.nextCorrelationId();
+		PendingRequest pending = new PendingRequest();
+		pendingRequests.put(correlationId, pending);
+		pending.timeout = requestTimer.schedule(() -> {
+			PendingRequest expired = pendingRequests.remove(correlationId);
+			if (expired != null && expired.future.completeExceptionally(
+					new TimeoutException("No reply to " + tag + " in " + timeoutMillis + " ms"))) {
+				timedOutRequests.incrementAndGet();
+			}
+		}, timeoutMillis, TimeUnit.MILLISECONDS);
+		countSent(1);
+		PluginManager.getInstance().sendMessage(id, tag, data, correlationId);
+		return pending.future;
+	}
+	
+	private void countSent(int count) {
+		MessageBusMetrics.PluginCounters counters = this.counters;
+		if (counters != null) {
+			counters.sent.add(count);
+		}
+	}
+	
+	/**
+	 * Number of requests sent by {@link #request} that are still waiting for a reply.
+	 */
+	public int getPendingRequestCount() {
+		return pendingRequests.size();
+	}
+	
+	public long getTimedOutRequestCount() {
+		return timedOutRequests.get();
 	}
 	
 	public void sendMessage(String tag, Object data, ResponseListener responseListener) {
@@ -53,43 +253,96 @@ public class PluginProxy implements MessageListener {
 			data = m;
 		}
 		Map m = (Map) data;
-		Integer seq = this.seq++;
+		Integer seq = this.seq.getAndIncrement();
 		responseListeners.put(seq, responseListener);
 		m.put("seq", seq);
 		sendMessage(tag, data);
 	}
 	
-	public void addMessageListener(String tag, MessageListener listener) {
-		Set<MessageListener> listeners = messageListeners.getOrDefault(tag, null);
-		if (listeners == null) {
-			listeners = new HashSet<>();
-			messageListeners.put(tag, listeners);
+	/**
+	 * Switches the plugin to asynchronous delivery: listeners added after this call are
+	 * invoked from a bounded mailbox drained in background instead of the sender's thread.
+	 */
+	public synchronized Mailbox enableAsyncDelivery(int capacity, Mailbox.OverflowPolicy policy) {
+		if (mailbox == null) {
+			mailbox = new Mailbox(id, capacity, policy);
 		}
-		listeners.add(listener);
-		PluginManager.getInstance().registerMessageListener(tag, listener);
+		return mailbox;
 	}
 	
-	public void removeMessageListener(String tag, MessageListener listener) {
-		PluginManager.getInstance().unregisterMessageListener(tag, listener);
-		Set<MessageListener> listeners = messageListeners.getOrDefault(tag, null);
-		if (listeners != null) {
-			listeners.remove(listener);
-			if (listeners.size() == 0) {
-				messageListeners.remove(tag);
-			}
+	/**
+	 * Mailbox of the plugin or null if its messages are delivered synchronously.
+	 */
+	public Mailbox getMailbox() {
+		return mailbox;
+	}
+	
+	/**
+	 * Subscribes the listener to a tag or to a pattern of tags: "*" stands for one
+	 * ':'-separated segment of a tag and "**" for one or more segments,
+	 * e.g. "gui-events:*" or "core-events:**".
+	 */
+	public synchronized void addMessageListener(String tag, MessageListener listener) {
+		Map<MessageListener, MessageListener> listeners = messageListeners.computeIfAbsent(tag, k -> new ConcurrentHashMap<>());
+		if (listeners.containsKey(listener)) {
+			return;
+		}
+		MessageListener registered = listener;
+		if (MessageBusMetrics.ENABLED) {
+			registered = PluginManager.getInstance().getMetrics().instrument(id, tag, registered);
+		}
+		Mailbox mailbox = this.mailbox;
+		if (mailbox != null) {
+			registered = mailbox.wrap(registered);
+		}
+		listeners.put(listener, registered);
+		if (!staged || isReplyListener(tag, listener)) {
+			PluginManager.getInstance().registerMessageListener(tag, registered);
+		}
+	}
+	
+	/* Ответы на тег плагина регистрируются сразу: плагин может ждать их уже в initialize */
+	private boolean isReplyListener(String tag, MessageListener listener) {
+		return listener == this && tag.equals(id);
+	}
+	
+	public synchronized void removeMessageListener(String tag, MessageListener listener) {
+		Map<MessageListener, MessageListener> listeners = messageListeners.get(tag);
+		MessageListener registered = (listeners != null) ? listeners.remove(listener) : null;
+		if (!staged || isReplyListener(tag, listener)) {
+			PluginManager.getInstance().unregisterMessageListener(tag, (registered != null) ? registered : listener);
+		}
+		if (registered != null) {
+			PluginManager.getInstance().getMetrics().release(registered);
 		}
 	}
 	
 	@Override
 	public void handleMessage(String sender, String tag, Object data) {
+		long correlationId = PluginManager.currentCorrelationId();
+		if (correlationId != 0) {
+			PendingRequest pending = pendingRequests.remove(correlationId);
+			if (pending != null) {
+				pending.timeout.cancel();
+				pending.future.complete(data);
+				return;
+			}
+		}
 		if (data instanceof Map) {
 			Map m = (Map) data;
 			Object seq = m.getOrDefault("seq", null);
-			ResponseListener listener = responseListeners.remove(seq);
-			listener.handle(sender, data);
+			ResponseListener listener = (seq != null) ? responseListeners.remove(seq) : null;
+			if (listener != null) {
+				listener.handle(sender, data);
+			}
 		}
 	}
 	public Path getDataDirPath() {
 		return PluginManager.getPluginDataDirPath(id);
 	}
+	
+	private static final class PendingRequest {
+		final CompletableFuture<Object> future = new CompletableFuture<>();
+		volatile HashedWheelTimer.Timeout timeout = null;
+	}
 }
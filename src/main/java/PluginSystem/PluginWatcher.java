@@ -0,0 +1,119 @@
+package PluginSystem;
+
+import java.io.IOException;
+import java.nio.file.*;
+import java.util.Map;
+import java.util.concurrent.*;
+
+import static java.nio.file.StandardWatchEventKinds.*;
+
+/**
+ * Watches the plugins directory and the directories of plugins in it. A burst of changes of
+ * one plugin is debounced into a single reload, which runs on a background thread, so
+ * neither the message bus nor the EDT waits for the compiler. New plugins are loaded the
+ * same way as at startup, so one with activationTags is only registered for lazy activation,
+ * deleted ones are unloaded. {@link PluginManager#quit} closes the watcher.
+ */
+final class PluginWatcher {
+	
+	private final PluginManager pluginManager;
+	private final Path pluginsDir;
+	private final long debounceMillis;
+	private final WatchService watchService;
+	private final Map<Path, ScheduledFuture<?>> pendingReloads = new ConcurrentHashMap<>();
+	private final ScheduledExecutorService reloadExecutor = Executors.newSingleThreadScheduledExecutor(runnable -> {
+		Thread thread = new Thread(runnable, "plugin-reload");
+		thread.setDaemon(true);
+		return thread;
+	});
+	
+	PluginWatcher(PluginManager pluginManager, Path pluginsDir, long debounceMillis) throws IOException {
+		this.pluginManager = pluginManager;
+		this.pluginsDir = pluginsDir;
+		this.debounceMillis = debounceMillis;
+		this.watchService = pluginsDir.getFileSystem().newWatchService();
+	}
+	
+	/**
+	 * Quiet period after the last change before a plugin is reloaded, -Dminachan.reload.debounce (ms).
+	 */
+	static long defaultDebounceMillis() {
+		return Long.getLong("minachan.reload.debounce", 500);
+	}
+	
+	void start() throws IOException {
+		register(pluginsDir);
+		try (DirectoryStream<Path> directoryStream = Files.newDirectoryStream(pluginsDir, Files::isDirectory)) {
+			for (Path path : directoryStream) {
+				register(path);
+			}
+		}
+		Thread thread = new Thread(this::run, "plugin-watcher");
+		thread.setDaemon(true);
+		thread.start();
+	}
+	
+	private void register(Path dir) throws IOException {
+		dir.register(watchService, ENTRY_CREATE, ENTRY_MODIFY, ENTRY_DELETE);
+	}
+	
+	private void run() {
+		while (true) {
+			WatchKey key;
+			try {
+				key = watchService.take();
+			} catch (InterruptedException | ClosedWatchServiceException e) {
+				return;
+			}
+			Path dir = (Path) key.watchable();
+			for (WatchEvent<?> event : key.pollEvents()) {
+				if (event.kind() == OVERFLOW) {
+					continue;
+				}
+				Path changed = dir.resolve((Path) event.context());
+				// Изменение внутри каталога плагина относится ко всему плагину
+				Path plugin = dir.equals(pluginsDir) ? changed : dir;
+				if (event.kind() == ENTRY_CREATE && plugin == changed && Files.isDirectory(changed)) {
+					try {
+						register(changed);
+					} catch (IOException e) {
+						PluginManager.log(e);
+					}
+				}
+				scheduleReload(plugin);
+			}
+			key.reset();
+		}
+	}
+	
+	private void scheduleReload(Path plugin) {
+		pendingReloads.compute(plugin, (path, pending) -> {
+			if (pending != null) {
+				pending.cancel(false);
+			}
+			return reloadExecutor.schedule(() -> reload(path), debounceMillis, TimeUnit.MILLISECONDS);
+		});
+	}
+	
+	private void reload(Path plugin) {
+		pendingReloads.remove(plugin);
+		String id = plugin.getFileName().toString();
+		try {
+			if (!Files.exists(plugin)) {
+				if (pluginManager.unloadPlugin(id)) {
+					PluginManager.log("Plugin " + id + " was deleted and unloaded");
+				}
+			} else if (pluginManager.findLoader(plugin) != null) {
+				pluginManager.reloadPlugin(plugin);
+			}
+		} catch (Throwable e) {
+			PluginManager.log(id, e);
+		}
+	}
+	
+	void close() throws IOException {
+		watchService.close();
+		reloadExecutor.shutdownNow();
+	}
+	
+}
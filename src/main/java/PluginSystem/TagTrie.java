@@ -0,0 +1,232 @@
+package PluginSystem;
+
+import java.util.Arrays;
+import java.util.Collection;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.function.BiConsumer;
+
+/**
+ * Trie of tag patterns keyed on the ':'-separated segments of a tag.
+ * A "*" segment matches exactly one segment, a "**" segment matches one or more segments,
+ * so "gui-events:*" matches "gui-events:character-left-click" and "core-events:**" matches
+ * every tag in the "core-events" namespace.
+ * The trie is not thread-safe, {@link MessageDispatchTable} guards it.
+ */
+final class TagTrie {
+
+	static final String SEPARATOR = ":";
+	static final String ANY_SEGMENT = "*";
+	static final String ANY_SEGMENTS = "**";
+
+	private final Node root = new Node();
+	private int size = 0;
+
+	/**
+	 * A tag is a pattern if one of its segments is exactly "*" or "**", a '*' inside a
+	 * segment is an ordinary character.
+	 */
+	static boolean isPattern(String tag) {
+		if (tag.indexOf('*') < 0) {
+			return false;
+		}
+		for (String segment : tag.split(SEPARATOR)) {
+			if (segment.equals(ANY_SEGMENT) || segment.equals(ANY_SEGMENTS)) {
+				return true;
+			}
+		}
+		return false;
+	}
+
+	/**
+	 * Checks a single tag against a single pattern without building a trie.
+	 */
+	static boolean matches(String pattern, String tag) {
+		return matches(pattern.split(SEPARATOR), 0, tag.split(SEPARATOR), 0);
+	}
+
+	private static boolean matches(String[] pattern, int p, String[] tag, int t) {
+		if (p == pattern.length) {
+			return t == tag.length;
+		}
+		if (t == tag.length) {
+			return false;
+		}
+		if (pattern[p].equals(ANY_SEGMENTS)) {
+			for (int next = t + 1; next <= tag.length; ++next) {
+				if (matches(pattern, p + 1, tag, next)) {
+					return true;
+				}
+			}
+			return false;
+		}
+		return (pattern[p].equals(ANY_SEGMENT) || pattern[p].equals(tag[t])) && matches(pattern, p + 1, tag, t + 1);
+	}
+
+	boolean isEmpty() {
+		return size == 0;
+	}
+
+	boolean add(String pattern, MessageListener listener) {
+		Node node = root;
+		for (String segment : pattern.split(SEPARATOR)) {
+			node = node.child(segment, true);
+		}
+		if (indexOf(node.listeners, listener) >= 0) {
+			return false;
+		}
+		node.listeners = Arrays.copyOf(node.listeners, node.listeners.length + 1);
+		node.listeners[node.listeners.length - 1] = listener;
+		size++;
+		return true;
+	}
+
+	boolean remove(String pattern, MessageListener listener) {
+		if (!remove(root, pattern.split(SEPARATOR), 0, listener)) {
+			return false;
+		}
+		size--;
+		return true;
+	}
+
+	/* Удаляет слушателя и узлы, которые после этого остались пустыми */
+	private static boolean remove(Node node, String[] segments, int index, MessageListener listener) {
+		if (index == segments.length) {
+			int position = indexOf(node.listeners, listener);
+			if (position < 0) {
+				return false;
+			}
+			MessageListener[] updated = new MessageListener[node.listeners.length - 1];
+			System.arraycopy(node.listeners, 0, updated, 0, position);
+			System.arraycopy(node.listeners, position + 1, updated, position, updated.length - position);
+			node.listeners = (updated.length == 0) ? MessageDispatchTable.NO_LISTENERS : updated;
+			return true;
+		}
+		Node child = node.child(segments[index], false);
+		if (child == null || !remove(child, segments, index + 1, listener)) {
+			return false;
+		}
+		if (child.isEmpty()) {
+			node.removeChild(segments[index]);
+		}
+		return true;
+	}
+
+	/**
+	 * Adds listeners of all patterns matching the tag to the collection.
+	 */
+	void collect(String tag, Collection<MessageListener> result) {
+		if (size > 0) {
+			collect(root, tag.split(SEPARATOR), 0, result);
+		}
+	}
+
+	private static void collect(Node node, String[] segments, int index, Collection<MessageListener> result) {
+		if (index == segments.length) {
+			result.addAll(Arrays.asList(node.listeners));
+			return;
+		}
+		if (node.children != null) {
+			Node child = node.children.get(segments[index]);
+			if (child != null) {
+				collect(child, segments, index + 1, result);
+			}
+		}
+		if (node.anySegment != null) {
+			collect(node.anySegment, segments, index + 1, result);
+		}
+		if (node.anySegments != null) {
+			for (int next = index + 1; next <= segments.length; ++next) {
+				collect(node.anySegments, segments, next, result);
+			}
+		}
+	}
+
+	/**
+	 * Iterates over all patterns that currently have listeners.
+	 */
+	void forEach(BiConsumer<String, MessageListener[]> consumer) {
+		forEach(root, null, consumer);
+	}
+
+	private static void forEach(Node node, String prefix, BiConsumer<String, MessageListener[]> consumer) {
+		if (node.listeners.length > 0) {
+			consumer.accept(prefix, node.listeners);
+		}
+		if (node.children != null) {
+			for (Map.Entry<String, Node> entry : node.children.entrySet()) {
+				forEach(entry.getValue(), join(prefix, entry.getKey()), consumer);
+			}
+		}
+		if (node.anySegment != null) {
+			forEach(node.anySegment, join(prefix, ANY_SEGMENT), consumer);
+		}
+		if (node.anySegments != null) {
+			forEach(node.anySegments, join(prefix, ANY_SEGMENTS), consumer);
+		}
+	}
+
+	private static String join(String prefix, String segment) {
+		return (prefix == null) ? segment : prefix + SEPARATOR + segment;
+	}
+
+	private static int indexOf(MessageListener[] array, MessageListener listener) {
+		for (int i = 0; i < array.length; ++i) {
+			if (array[i].equals(listener)) {
+				return i;
+			}
+		}
+		return -1;
+	}
+
+	private static final class Node {
+
+		Map<String, Node> children = null;
+		Node anySegment = null;
+		Node anySegments = null;
+		MessageListener[] listeners = MessageDispatchTable.NO_LISTENERS;
+
+		boolean isEmpty() {
+			return listeners.length == 0 && children == null && anySegment == null && anySegments == null;
+		}
+
+		void removeChild(String segment) {
+			if (segment.equals(ANY_SEGMENT)) {
+				anySegment = null;
+			} else if (segment.equals(ANY_SEGMENTS)) {
+				anySegments = null;
+			} else if (children != null) {
+				children.remove(segment);
+				if (children.isEmpty()) {
+					children = null;
+				}
+			}
+		}
+
+		Node child(String segment, boolean create) {
+			if (segment.equals(ANY_SEGMENT)) {
+				if (anySegment == null && create) {
+					anySegment = new Node();
+				}
+				return anySegment;
+			}
+			if (segment.equals(ANY_SEGMENTS)) {
+				if (anySegments == null && create) {
+					anySegments = new Node();
+				}
+				return anySegments;
+			}
+			Node child = (children != null) ? children.get(segment) : null;
+			if (child == null && create) {
+				if (children == null) {
+					children = new HashMap<>();
+				}
+				child = new Node();
+				children.put(segment, child);
+			}
+			return child;
+		}
+
+	}
+
+}
@@ -5,14 +5,17 @@ import java.net.URI;
 import java.net.URISyntaxException;
 import java.net.URL;
 import java.nio.file.FileSystem;
+import java.nio.file.FileSystemAlreadyExistsException;
 import java.nio.file.FileSystems;
 import java.nio.file.Path;
 import java.nio.file.Paths;
 import java.util.HashMap;
+import java.util.Map;
 
 public class Utils {
 	
-	private static FileSystem jarFileSystem = null;
+	/* Файловые системы jar-файлов с ресурсами, по URI jar-файла */
+	private static final Map<String, FileSystem> jarFileSystems = new HashMap<>();
 	
 	public static Path getResourcePath(String resourceName) {
 		final URL url = Utils.class.getClassLoader().getResource(resourceName);
@@ -21,10 +24,7 @@ public class Utils {
 				final URI uri = url.toURI();
 				Path path;
 				if (uri.getScheme().equals("jar")) {
-					if (jarFileSystem == null) {
-						jarFileSystem = FileSystems.newFileSystem(uri, new HashMap<String, String>());
-					}
-					path = jarFileSystem.getPath(resourceName);
+					path = getJarFileSystem(uri).getPath(resourceName);
 				} else {
 					path = Paths.get(uri);
 				}
@@ -36,4 +36,34 @@ public class Utils {
 		return null;
 	}
 	
+	private static synchronized FileSystem getJarFileSystem(URI uri) throws IOException {
+		String spec = uri.toString();
+		int separator = spec.indexOf("!/");
+		String jar = (separator >= 0) ? spec.substring(0, separator) : spec;
+		FileSystem fileSystem = jarFileSystems.get(jar);
+		if (fileSystem == null || !fileSystem.isOpen()) {
+			try {
+				fileSystem = FileSystems.newFileSystem(uri, new HashMap<String, String>());
+			} catch (FileSystemAlreadyExistsException e) {
+				fileSystem = FileSystems.getFileSystem(uri);
+			}
+			jarFileSystems.put(jar, fileSystem);
+		}
+		return fileSystem;
+	}
+	
+	/**
+	 * Closes file systems opened by {@link #getResourcePath} for resources inside jars.
+	 */
+	public static synchronized void closeResourceFileSystems() {
+		for (FileSystem fileSystem : jarFileSystems.values()) {
+			try {
+				fileSystem.close();
+			} catch (IOException e) {
+				PluginManager.log(e);
+			}
+		}
+		jarFileSystems.clear();
+	}
+	
 }
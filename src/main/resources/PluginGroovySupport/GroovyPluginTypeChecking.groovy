@@ -0,0 +1,18 @@
+// Type checking extension for plugins compiled with compileStatic=true.
+// Message data arrives as Object, so calls and properties on Object receivers
+// (e.g. data.size(), data.text) fall back to dynamic dispatch instead of failing,
+// while calls to the GroovyPlugin API and typed code stay statically compiled.
+
+import org.codehaus.groovy.ast.ClassHelper
+
+methodNotFound { receiver, name, argList, argTypes, call ->
+    if (receiver == ClassHelper.OBJECT_TYPE) {
+        return makeDynamic(call)
+    }
+}
+
+unresolvedProperty { pexp ->
+    if (getType(pexp.objectExpression) == ClassHelper.OBJECT_TYPE) {
+        return makeDynamic(pexp)
+    }
+}
@@ -0,0 +1,132 @@
+package PluginGUI;
+
+import org.junit.jupiter.api.Test;
+
+import java.awt.*;
+import java.util.ArrayList;
+import java.util.List;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Markup parsing and wrapping of {@link BalloonText}.
+ */
+class BalloonTextTest {
+
+	private static final Font FONT = new Font(Font.SERIF, Font.PLAIN, 18);
+
+	@Test
+	void collapsesWhitespace() {
+		assertEquals(List.of("Привет, как дела?"), texts("  Привет,\n\t как   дела? "));
+	}
+
+	@Test
+	void decodesEntities() {
+		assertEquals(List.of("<a & b> «да» — \"нет\"…"),
+				texts("&lt;a &amp; b&gt; &laquo;да&raquo; &mdash; &quot;нет&quot;&hellip;"));
+		assertEquals(List.of("AAя😀"), texts("&#65;&#x41;&#1103;&#x1F600;"));
+		assertEquals(List.of("a b\u00a0c"), texts("a&#9;&#10; b&nbsp;c"));
+	}
+
+	@Test
+	void keepsInvalidReferencesAsText() {
+		assertEquals(List.of("&#0; &#x0; &#1; &#xD800; &#+65; &#; &#x; &unknown; & a;"),
+				texts("&#0; &#x0; &#1; &#xD800; &#+65; &#; &#x; &unknown; & a;"));
+		assertEquals(List.of("&#99999999;"), texts("&#99999999;"));
+	}
+
+	@Test
+	void breaksLinesAtBr() {
+		assertEquals(List.of("one", "two"), texts("one<br>two"));
+		assertEquals(List.of("one", "two"), texts("one <BR/> two"));
+		assertEquals(List.of("one", "", "two"), texts("one<br><br>two"));
+	}
+
+	@Test
+	void trailingBrDoesNotAddBlankLine() {
+		assertEquals(List.of("one"), texts("one<br>"));
+		assertEquals(List.of("one"), texts("one <br> "));
+		assertEquals(List.of("one", ""), texts("one<br><br>"));
+		assertEquals(1, BalloonText.layout("one<br>", FONT, 300).getLineCount());
+		assertEquals(BalloonText.layout("one", FONT, 300).getHeight(), BalloonText.layout("one<br>", FONT, 300).getHeight());
+	}
+
+	@Test
+	void keepsLessThanThatDoesNotStartTag() {
+		assertEquals(List.of("a < b and c > d"), texts("a < b and c > d"));
+		assertEquals(List.of("1<2"), texts("1<2"));
+		assertEquals(List.of("open <b"), texts("open <b"));
+	}
+
+	@Test
+	void dropsUnknownTags() {
+		assertEquals(List.of("link and text"), texts("<a href=\"x\">link</a> and <span class='y'>text</span>"));
+	}
+
+	@Test
+	void appliesStyleRuns() {
+		BalloonText.Paragraph paragraph = single("a<b>b<i>c</i></b><u>d</u><strong>e</strong><em>f</em>");
+		assertEquals("abcdef", paragraph.getText());
+		assertEquals(0, paragraph.getStyle(0));
+		assertEquals(BalloonText.BOLD, paragraph.getStyle(1));
+		assertEquals(BalloonText.BOLD | BalloonText.ITALIC, paragraph.getStyle(2));
+		assertEquals(BalloonText.UNDERLINE, paragraph.getStyle(3));
+		assertEquals(BalloonText.BOLD, paragraph.getStyle(4));
+		assertEquals(BalloonText.ITALIC, paragraph.getStyle(5));
+	}
+
+	@Test
+	void nestsSameStyle() {
+		BalloonText.Paragraph paragraph = single("<b>a<strong>b</strong>c</b>d");
+		assertEquals("abcd", paragraph.getText());
+		assertEquals(BalloonText.BOLD, paragraph.getStyle(0));
+		assertEquals(BalloonText.BOLD, paragraph.getStyle(1));
+		assertEquals(BalloonText.BOLD, paragraph.getStyle(2));
+		assertEquals(0, paragraph.getStyle(3));
+	}
+
+	@Test
+	void ignoresUnmatchedCloseAndKeepsUnclosedStyle() {
+		BalloonText.Paragraph paragraph = single("a</b>b<i>c");
+		assertEquals("abc", paragraph.getText());
+		assertEquals(0, paragraph.getStyle(1));
+		assertEquals(BalloonText.ITALIC, paragraph.getStyle(2));
+		List<BalloonText.Paragraph> paragraphs = BalloonText.parse("<u>a<br>b</u>c");
+		assertEquals(BalloonText.UNDERLINE, paragraphs.get(1).getStyle(0));
+		assertEquals(0, paragraphs.get(1).getStyle(1));
+	}
+
+	@Test
+	void wrapsToWidth() {
+		String text = "Сегодня отличная погода, самое время погулять и отдохнуть.";
+		BalloonText line = BalloonText.layout(text, FONT, 10000);
+		assertEquals(1, line.getLineCount());
+		float wrapWidth = line.getWidth() / 3f;
+		BalloonText wrapped = BalloonText.layout(text, FONT, wrapWidth);
+		assertTrue(wrapped.getLineCount() >= 3, () -> wrapped.getLineCount() + " lines");
+		assertTrue(wrapped.getWidth() <= Math.ceil(wrapWidth), () -> wrapped.getWidth() + " > " + wrapWidth);
+		assertTrue(wrapped.getHeight() > line.getHeight());
+	}
+
+	@Test
+	void emptyPhraseIsOneBlankLine() {
+		assertEquals(List.of(""), texts(""));
+		assertEquals(List.of(""), texts("<br>"));
+		assertEquals(0, BalloonText.layout("", FONT, 300).getWidth());
+	}
+
+	private static BalloonText.Paragraph single(String markup) {
+		List<BalloonText.Paragraph> paragraphs = BalloonText.parse(markup);
+		assertEquals(1, paragraphs.size());
+		return paragraphs.get(0);
+	}
+
+	private static List<String> texts(String markup) {
+		List<String> result = new ArrayList<>();
+		for (BalloonText.Paragraph paragraph : BalloonText.parse(markup)) {
+			result.add(paragraph.getText());
+		}
+		return result;
+	}
+
+}
@@ -0,0 +1,168 @@
+package PluginGUI;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.function.BooleanSupplier;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Deduplication, the per-plugin token bucket and preemption of {@link SpeechScheduler}.
+ * The display runs on the event thread, so every check waits for the expected state with
+ * a timeout instead of relying on exact timing.
+ */
+class SpeechSchedulerTest {
+
+	private static final long TIMEOUT_MILLIS = 5000;
+	/* Достаточно долго, чтобы показанная фраза не сменилась сама во время теста */
+	private static final long FOREVER_MILLIS = 60000;
+
+	private volatile String visible = null;
+	private SpeechScheduler scheduler = null;
+
+	@AfterEach
+	void shutdown() {
+		if (scheduler != null) {
+			scheduler.shutdown();
+		}
+	}
+
+	private SpeechScheduler start(int burst, double rate, long minDisplay) {
+		scheduler = new SpeechScheduler(text -> visible = text, burst, rate, minDisplay);
+		return scheduler;
+	}
+
+	@Test
+	void dropsPhrasesThatAreShownOrWaiting() throws InterruptedException {
+		start(10, 1, FOREVER_MILLIS);
+		scheduler.say("test", "first", 0, 0);
+		awaitVisible("first");
+		scheduler.say("test", "first", 0, 0);
+		scheduler.say("test", "second", 0, 0);
+		scheduler.say("test", "second", 0, 0);
+		awaitStatistic("deduplicated", 2);
+		assertEquals(1, statistic("shown"));
+		assertEquals("first", visible);
+
+		scheduler.dismiss();
+		awaitVisible("second");
+		assertEquals(2, statistic("shown"));
+	}
+
+	@Test
+	void limitsPhrasesOfEveryPlugin() throws InterruptedException {
+		start(3, 0.01, FOREVER_MILLIS);
+		for (int i = 0; i < 10; ++i) {
+			scheduler.say("chatty", "phrase " + i, 0, 0);
+		}
+		scheduler.say("quiet", "hello", 0, 0);
+		awaitStatistic("rateLimited", 7);
+		assertEquals(11, statistic("submitted"));
+		assertEquals(0, statistic("deduplicated"));
+		assertEquals("phrase 0", visible);
+
+		// Болтливый плагин не отнял токены у другого
+		for (int i = 0; i < 2; ++i) {
+			scheduler.dismiss();
+			awaitVisible("phrase " + (i + 1));
+		}
+		scheduler.dismiss();
+		awaitVisible("hello");
+		assertEquals(7, statistic("rateLimited"));
+	}
+
+	@Test
+	void morePhrasesAfterTheBurstRefill() throws InterruptedException {
+		start(1, 20, 0);
+		scheduler.say("test", "one", 0, 0);
+		scheduler.say("test", "two", 0, 0);
+		awaitStatistic("rateLimited", 1);
+		Thread.sleep(200);
+		scheduler.say("test", "three", 0, 0);
+		awaitVisible("three");
+		assertEquals(1, statistic("rateLimited"));
+	}
+
+	@Test
+	void preemptsOnlyWithSameOrHigherPriority() throws InterruptedException {
+		int timeout = (int) FOREVER_MILLIS;
+		start(10, 1, 100);
+		scheduler.say("test", "normal", timeout, 1);
+		awaitVisible("normal");
+		scheduler.say("test", "important", timeout, 5);
+		awaitVisible("important");
+		assertEquals(1, statistic("preempted"));
+
+		scheduler.say("test", "minor", timeout, 1);
+		Thread.sleep(500);
+		assertEquals("important", visible);
+		assertEquals(1, statistic("preempted"));
+
+		scheduler.say("test", "also important", timeout, 5);
+		awaitVisible("also important");
+		assertEquals(2, statistic("preempted"));
+
+		scheduler.dismiss();
+		awaitVisible("minor");
+		assertEquals(2, statistic("preempted"));
+	}
+
+	@Test
+	void lessImportantPhraseWaitsUntilTheShownOneExpires() throws InterruptedException {
+		start(10, 1, 0);
+		scheduler.say("test", "important", 300, 5);
+		awaitVisible("important");
+		scheduler.say("test", "minor", 0, 1);
+		Thread.sleep(100);
+		assertEquals("important", visible);
+		awaitVisible("minor");
+		assertEquals(0, statistic("preempted"));
+	}
+
+	@Test
+	void phraseWithoutTimeoutGivesWayToAnyWaitingPhrase() throws InterruptedException {
+		start(10, 1, 100);
+		scheduler.say("test", "important", 0, 5);
+		awaitVisible("important");
+		scheduler.say("test", "minor", 0, 1);
+		Thread.sleep(20);
+		assertEquals("important", visible);
+		// Без этого фраза ждала бы щелчка или новой фразы
+		awaitVisible("minor");
+		assertEquals(1, statistic("preempted"));
+	}
+
+	@Test
+	void ignoresPhrasesAfterShutdown() {
+		start(10, 1, 0);
+		scheduler.shutdown();
+		assertDoesNotThrow(() -> scheduler.say("test", "late", 0, 0));
+		assertDoesNotThrow(() -> scheduler.dismiss());
+		assertEquals(0, statistic("submitted"));
+	}
+
+	private long statistic(String name) {
+		return ((Number) scheduler.getStatistics().get(name)).longValue();
+	}
+
+	private void awaitStatistic(String name, long value) throws InterruptedException {
+		await(() -> statistic(name) >= value, name + " reached " + value);
+		assertEquals(value, statistic(name), name);
+	}
+
+	private void awaitVisible(String text) throws InterruptedException {
+		await(() -> text.equals(visible), "\"" + text + "\" is shown");
+	}
+
+	private static void await(BooleanSupplier condition, String description) throws InterruptedException {
+		long deadline = System.currentTimeMillis() + TIMEOUT_MILLIS;
+		while (!condition.getAsBoolean()) {
+			if (System.currentTimeMillis() > deadline) {
+				fail("Timed out waiting until " + description);
+			}
+			Thread.sleep(5);
+		}
+	}
+
+}
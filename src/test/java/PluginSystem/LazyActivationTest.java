@@ -0,0 +1,108 @@
+package PluginSystem;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.nio.file.Files;
+import java.nio.file.Path;
+import java.util.HashMap;
+import java.util.Map;
+import java.util.concurrent.CompletableFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * A plugin with activationTags is compiled and initialized in background on the first
+ * message with one of its tags. Requests it sends from initialize must get their replies
+ * like when it is loaded eagerly, although its other listeners are registered only after
+ * initialization.
+ */
+class LazyActivationTest {
+
+	private static final String ASK = "test-lazy:ask";
+	private static final String ACTIVATE = "test-lazy:activate";
+
+	private final PluginManager manager = PluginManager.getInstance();
+	private final MessageListener responder = (sender, tag, data) -> {
+		Map<String, Object> reply = new HashMap<>();
+		if (data instanceof Map) {
+			reply.put("seq", ((Map) data).get("seq"));
+		}
+		reply.put("answer", "pong");
+		manager.sendMessage("test-responder", sender, reply, PluginManager.replyCorrelationId(sender));
+	};
+	private PluginLoader loader = null;
+	private String id = null;
+
+	@AfterEach
+	void cleanUp() {
+		manager.unregisterMessageListener(ASK, responder);
+		if (id != null) {
+			manager.unloadPlugin(id);
+		}
+		if (loader != null) {
+			manager.unregisterPluginLoader(loader);
+		}
+	}
+
+	@Test
+	void repliesReachPluginDuringLazyInitialization() throws Exception {
+		manager.registerMessageListener(ASK, responder);
+		AtomicReference<Object> seqReply = new AtomicReference<>();
+		AtomicReference<CompletableFuture<Object>> request = new AtomicReference<>();
+		AtomicReference<PluginProxy> proxyRef = new AtomicReference<>();
+		AtomicInteger activations = new AtomicInteger();
+		Plugin plugin = new Plugin() {
+			@Override
+			public boolean initialize(PluginProxy proxy) {
+				proxyRef.set(proxy);
+				proxy.sendMessage(ASK, null, (sender, data) -> seqReply.set(((Map) data).get("answer")));
+				request.set(proxy.request(ASK, null, 1000));
+				proxy.addMessageListener(ACTIVATE, (sender, tag, data) -> activations.incrementAndGet());
+				return true;
+			}
+		};
+
+		Path path = Files.createTempDirectory("lazy-plugin");
+		Files.write(path.resolve(PluginManifest.FILE_NAME), ("activationTags=" + ACTIVATE + "\n").getBytes("UTF-8"));
+		loader = new PluginLoader() {
+			@Override
+			public boolean matchPath(Path candidate) {
+				return candidate.equals(path);
+			}
+
+			@Override
+			public void loadByPath(Path candidate) {
+				fail("Lazy plugin must be compiled, not loaded by path");
+			}
+
+			@Override
+			public Plugin compile(Path candidate, PluginManifest manifest) {
+				return plugin;
+			}
+		};
+		manager.registerPluginLoader(loader);
+		PluginManifest manifest = PluginManifest.load(path);
+		id = manifest.getId();
+		manager.registerLazyPlugin(path, manifest, loader);
+		assertFalse(manager.isPluginLoaded(id));
+
+		manager.sendMessage("test", ACTIVATE, 1);
+
+		// Активация идёт в фоне, сообщение доставляется после неё
+		long deadline = System.currentTimeMillis() + 5000;
+		while (activations.get() == 0 && System.currentTimeMillis() < deadline) {
+			Thread.sleep(5);
+		}
+		assertTrue(manager.isPluginLoaded(id));
+		assertEquals(1, activations.get());
+		assertEquals("pong", seqReply.get());
+		Object reply = request.get().get(1, TimeUnit.SECONDS);
+		assertEquals("pong", ((Map) reply).get("answer"));
+		assertEquals(0, proxyRef.get().getPendingRequestCount());
+	}
+
+}
@@ -0,0 +1,146 @@
+package PluginSystem;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicIntegerArray;
+import java.util.concurrent.atomic.AtomicLong;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Publishing through {@link PluginManager#sendMessage} from several threads while another
+ * thread registers and removes counting listeners. Every message carries its number, and
+ * a logical clock orders publishing against registration, so the exact set of messages each
+ * listener must get is known.
+ */
+class MessageBusConcurrencyTest {
+
+	private static final String TAG = "test-bus:concurrent";
+	private static final String PATTERN = "test-bus:*";
+	private static final int PUBLISHERS = 4;
+	private static final int MESSAGES_PER_PUBLISHER = 20000;
+	private static final int MESSAGES = PUBLISHERS * MESSAGES_PER_PUBLISHER;
+	private static final int MAX_CHURNED_LISTENERS = 64;
+
+	private final PluginManager manager = PluginManager.getInstance();
+	private final List<Registration> registered = new ArrayList<>();
+
+	@AfterEach
+	void unregister() {
+		for (Registration registration : registered) {
+			manager.unregisterMessageListener(registration.tag, registration.listener);
+		}
+	}
+
+	@Test
+	void deliversEveryMessageExactlyOnceWhileListenersChange() throws InterruptedException {
+		AtomicLong clock = new AtomicLong();
+		long[] publishStarted = new long[MESSAGES];
+		long[] publishFinished = new long[MESSAGES];
+		Registration stable = register(new Registration(TAG));
+
+		CountDownLatch start = new CountDownLatch(1);
+		AtomicBoolean publishing = new AtomicBoolean(true);
+		List<Throwable> errors = new ArrayList<>();
+		List<Thread> publishers = new ArrayList<>();
+		for (int p = 0; p < PUBLISHERS; ++p) {
+			int first = p * MESSAGES_PER_PUBLISHER;
+			publishers.add(new Thread(() -> {
+				try {
+					start.await();
+					for (int id = first; id < first + MESSAGES_PER_PUBLISHER; ++id) {
+						publishStarted[id] = clock.incrementAndGet();
+						manager.sendMessage("test", TAG, id);
+						publishFinished[id] = clock.incrementAndGet();
+					}
+				} catch (Throwable e) {
+					synchronized (errors) {
+						errors.add(e);
+					}
+				}
+			}, "test-publisher-" + p));
+		}
+		List<Registration> churned = new ArrayList<>();
+		Thread churn = new Thread(() -> {
+			try {
+				start.await();
+				while (publishing.get() && churned.size() < MAX_CHURNED_LISTENERS) {
+					Registration registration = new Registration((churned.size() % 2 == 0) ? TAG : PATTERN);
+					registration.addingAt = clock.incrementAndGet();
+					register(registration);
+					registration.addedAt = clock.incrementAndGet();
+					Thread.sleep(1);
+					registration.removingAt = clock.incrementAndGet();
+					manager.unregisterMessageListener(registration.tag, registration.listener);
+					registration.removedAt = clock.incrementAndGet();
+					churned.add(registration);
+				}
+			} catch (Throwable e) {
+				synchronized (errors) {
+					errors.add(e);
+				}
+			}
+		}, "test-churn");
+
+		for (Thread publisher : publishers) {
+			publisher.start();
+		}
+		churn.start();
+		start.countDown();
+		for (Thread publisher : publishers) {
+			publisher.join();
+		}
+		publishing.set(false);
+		churn.join();
+
+		assertTrue(errors.isEmpty(), () -> "Errors: " + errors);
+		assertFalse(churned.isEmpty());
+		for (int id = 0; id < MESSAGES; ++id) {
+			assertEquals(1, stable.counts.get(id), "deliveries of message " + id + " to the stable listener");
+		}
+		int delivered = 0;
+		for (Registration registration : churned) {
+			for (int id = 0; id < MESSAGES; ++id) {
+				int count = registration.counts.get(id);
+				delivered += count;
+				assertTrue(count <= 1, "message " + id + " delivered " + count + " times");
+				if (publishStarted[id] > registration.addedAt && publishFinished[id] < registration.removingAt) {
+					assertEquals(1, count, "message " + id + " published while " + registration.tag + " was registered");
+				} else if (publishStarted[id] > registration.removedAt || publishFinished[id] < registration.addingAt) {
+					assertEquals(0, count, "message " + id + " published while " + registration.tag + " was not registered");
+				}
+			}
+		}
+		assertTrue(delivered > 0, "churned listeners got no messages");
+	}
+
+	private Registration register(Registration registration) {
+		manager.registerMessageListener(registration.tag, registration.listener);
+		synchronized (registered) {
+			registered.add(registration);
+		}
+		return registration;
+	}
+
+	private static final class Registration {
+
+		final String tag;
+		final AtomicIntegerArray counts = new AtomicIntegerArray(MESSAGES);
+		final MessageListener listener = (sender, tag, data) -> counts.incrementAndGet((Integer) data);
+		volatile long addingAt;
+		volatile long addedAt;
+		volatile long removingAt;
+		volatile long removedAt;
+
+		Registration(String tag) {
+			this.tag = tag;
+		}
+
+	}
+
+}
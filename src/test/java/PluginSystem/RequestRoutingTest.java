@@ -0,0 +1,94 @@
+package PluginSystem;
+
+import org.junit.jupiter.api.AfterEach;
+import org.junit.jupiter.api.BeforeEach;
+import org.junit.jupiter.api.Test;
+
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import static org.junit.jupiter.api.Assertions.*;
+
+/**
+ * Replies to {@link PluginProxy#request} reach the requester when the request is forwarded
+ * to another tag on the way, not only when it is sent to the handler directly.
+ */
+class RequestRoutingTest {
+
+	private static final String DIRECT = "test-route:direct";
+	private static final String FORWARD = "test-route:forward";
+	private static final String ALIAS = "test-route:alias";
+
+	private final PluginManager manager = PluginManager.getInstance();
+	private final List<String> loaded = new ArrayList<>();
+	private PluginProxy requester = null;
+
+	@BeforeEach
+	void loadPlugins() {
+		if (!manager.isPluginLoaded("core")) {
+			load("core", new CorePlugin());
+		}
+		load("test-route-requester", new Plugin() {
+			@Override
+			public boolean initialize(PluginProxy proxy) {
+				requester = proxy;
+				return true;
+			}
+		});
+		load("test-route-handler", new Plugin() {
+			@Override
+			public boolean initialize(PluginProxy proxy) {
+				proxy.addMessageListener(DIRECT, (sender, tag, data) -> proxy.sendMessage(sender, "pong " + data));
+				return true;
+			}
+		});
+	}
+
+	@AfterEach
+	void unloadPlugins() {
+		for (int i = loaded.size() - 1; i >= 0; --i) {
+			manager.unloadPlugin(loaded.get(i));
+		}
+	}
+
+	@Test
+	void repliesToDirectRequest() throws Exception {
+		assertEquals("pong 1", requester.request(DIRECT, 1, 1000).get(1, TimeUnit.SECONDS));
+	}
+
+	@Test
+	void repliesToRequestForwardedByTagId() throws Exception {
+		int directId = manager.getTagId(DIRECT);
+		MessageListener forwarder = (sender, tag, data) ->
+				manager.sendMessage(sender, directId, data, PluginManager.currentCorrelationId());
+		manager.registerMessageListener(FORWARD, forwarder);
+		try {
+			assertEquals("pong 2", requester.request(FORWARD, 2, 1000).get(1, TimeUnit.SECONDS));
+		} finally {
+			manager.unregisterMessageListener(FORWARD, forwarder);
+		}
+	}
+
+	@Test
+	void repliesToRequestRoutedToAlternative() throws Exception {
+		Map<String, Object> alternative = new HashMap<>();
+		alternative.put("srcTag", ALIAS);
+		alternative.put("dstTag", DIRECT);
+		alternative.put("priority", 1);
+		manager.sendMessage("test-route-handler", "core:register-alternative", alternative);
+		try {
+			assertEquals("pong 3", requester.request(ALIAS, 3, 1000).get(1, TimeUnit.SECONDS));
+		} finally {
+			manager.sendMessage("test-route-handler", "core:unregister-alternative", alternative);
+		}
+	}
+
+	private void load(String id, Plugin plugin) {
+		assertTrue(manager.initializePlugin(id, plugin), id);
+		loaded.add(id);
+	}
+
+}